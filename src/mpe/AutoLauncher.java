@@ -1,184 +1,425 @@
-package mpe;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.Vector;
-
-import xmlcomponents.Jocument;
-import xmlcomponents.Jode;
-
-/**
- * AutoLauncher will try to automatically execute MPE processes on remote nodes with SSH.
- * @author Brandt Westing TACC
- *
- */
-public class AutoLauncher extends Thread {
-	
-	String configFile_;
-	String sketchPath_;
-	Vector<java.lang.Process> processVector_;
-	
-	public AutoLauncher(String configFile, String sketchPath)
-	{
-		configFile_ = configFile;
-		sketchPath_ = sketchPath;
-		processVector_ = new Vector<java.lang.Process>();
-	}
-	
-	public void run()
-	{
-		System.out.println("AutoLauncher:loading XML configuration file");
-		Jode root = null;
-		File file = new File(configFile_);
-		if (file.isAbsolute()) {
-			System.out.println("Absolute file path specified, loading config: " + file.getPath());
-			root = Jocument.load(configFile_);
-		} else {
-			configFile_ = sketchPath_ + "/data/" + configFile_;
-			System.out.println("Relative file path specified, loading config: " + configFile_);
-			root = Jocument.load(configFile_);
-		}
-		
-		System.out.println("AutoLauncher:loading XML configuration node");
-		Jode config = root.single("configuration");
-		System.out.println("AutoLauncher:loading XML processingPath node");
-		String processingPath = config.first("config").attribute("processingPath").v;
-		System.out.println("processingPath = "+processingPath);
-		// launch each child process
-		for(Jode child : config.children())
-		{
-			if (child.n.equals("process"))
-			{
-				if(!child.hasAttribute("rank"))
-				{
-					System.out.println("Rank not specified in configuration for all processes. Aborting.");
-					
-					// kill all previously launched process'
-					for(java.lang.Process p : processVector_)
-						p.destroy();
-					System.exit(-1);
-				}
-				else
-				{
-					final String rank = child.attribute("rank").v;
-					final String hostName = child.attribute("host").v;
-					
-					String display=":0.0";
-					if(child.hasAttribute("display"))
-						display = child.attribute("display").v;
-					
-					String[] command = {"ssh",
-											hostName, 
-											"export RANK="+rank, 
-											"export PATH=$PATH:"+processingPath,
-											"export DISPLAY="+display,
-											";", // seperate the exports with the executable
-											"processing-java", 
-											 "--sketch="+sketchPath_, 
-											 "--run", 
-											 "--output="+sketchPath_+"/"+hostName+"_"+rank, 
-											 "--force"};
-
-					// the ProcessBuilder will launch the process external to the VM with specified env. parameters
-					ProcessBuilder pb = new ProcessBuilder(command);
-					Map<String, String> env = pb.environment();
-					//env.put("RANK", rank);
-					//env.put("PATH", "PATH=" + processingPath);
-					//System.out.println(Arrays.toString(command));
-
-					// start the process and merge output streams of child process' with head stream
-					try {
-						
-						pb.redirectErrorStream(true);
-						java.lang.Process p = pb.start();
-						processVector_.add(p);
-						final InputStream is = p.getInputStream();
-						
-						new Thread(new Runnable() {
-						    public void run() {
-						        try {
-						            BufferedReader reader =
-						                new BufferedReader(new InputStreamReader(is));
-						            String line;
-						            while ((line = reader.readLine()) != null) {
-						                System.out.println(hostName + "-rank" + rank + ": " + line);
-						            }
-						        } catch (IOException e) {
-						            e.printStackTrace();
-						        } finally {
-						            try {
-										is.close();
-									} catch (IOException e) {
-										// TODO Auto-generated catch block
-										e.printStackTrace();
-									}
-						        }
-						    }
-						}).start();
-
-						//System.out.println("Exit code: " + exitCode);
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
-			}
-		}
-	}
-	
-	/*
-	public void replace() {
-	      String oldFileName = "~/.processing/preferences.txt";
-	      String tmpFileName = "~/.processing/tmp_preferences.txt";
-
-	      BufferedReader br = null;
-	      BufferedWriter bw = null;
-	      try {
-	         br = new BufferedReader(new FileReader(oldFileName));
-	         bw = new BufferedWriter(new FileWriter(tmpFileName));
-	         String line;
-	         while ((line = br.readLine()) != null) {
-	            if (line.contains("run.display"))
-	               line = line.replaceAll(":0.0", "");
-	            bw.write(line+"\n");
-	         }
-	      } catch (Exception e) {
-	         return;
-	      } finally {
-	         try {
-	            if(br != null)
-	               br.close();
-	         } catch (IOException e) {
-	            //
-	         }
-	         try {
-	            if(bw != null)
-	               bw.close();
-	         } catch (IOException e) {
-	            //
-	         }
-	      }
-	      // Once everything is complete, delete old file..
-	      File oldFile = new File(oldFileName);
-	      oldFile.delete();
-
-	      // And rename tmp file's name to old file name
-	      File newFile = new File(tmpFileName);
-	      newFile.renameTo(oldFile);
-
-	}
-	*/
-	
-	public void shutDown()
-	{
-		// kill all previously launched process'
-		for(java.lang.Process p : processVector_)
-			p.destroy();
-		System.exit(0);
-	}
-}
+package mpe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import xmlcomponents.Jocument;
+import xmlcomponents.Jode;
+
+/**
+ * AutoLauncher will try to automatically execute MPE processes on remote nodes with SSH, or directly on this host,
+ * see Launcher. The sketch is exported once on the leader, its jars are copied to a cache folder on every host
+ * named by their content hash, and each rank then only starts java on the cached jars.
+ * @author Brandt Westing TACC
+ *
+ */
+public class AutoLauncher extends Thread {
+	
+	// the folder the sketch is built into on the leader, below the sketch folder
+	public static final String BUILD_FOLDER = "mpe-build";
+	
+	// marks a completely staged artifact in the host's cache folder
+	public static final String COMPLETE_MARKER = ".complete";
+	
+	String configFile_;
+	String sketchPath_;
+	Vector<java.lang.Process> processVector_;
+	
+	// the port of the FollowerAgent on every host, 0 to always start a new JVM
+	int agentPort_;
+	
+	// open requests to follower agents, closing one ends that rank's session
+	Vector<Socket> agentSessions_;
+	
+	// "ssh", "local", or "auto" to start ranks on this host without ssh
+	String launcher_ = "auto";
+	Launcher ssh_ = new SshLauncher();
+	Launcher local_ = new LocalLauncher();
+	
+	public AutoLauncher(String configFile, String sketchPath)
+	{
+		configFile_ = configFile;
+		sketchPath_ = sketchPath;
+		processVector_ = new Vector<java.lang.Process>();
+		agentSessions_ = new Vector<Socket>();
+	}
+	
+	public void run()
+	{
+		System.out.println("AutoLauncher:loading XML configuration file");
+		Jode root = null;
+		File file = new File(configFile_);
+		if (file.isAbsolute()) {
+			System.out.println("Absolute file path specified, loading config: " + file.getPath());
+			root = Jocument.load(configFile_);
+		} else {
+			configFile_ = sketchPath_ + "/data/" + configFile_;
+			System.out.println("Relative file path specified, loading config: " + configFile_);
+			root = Jocument.load(configFile_);
+		}
+		
+		System.out.println("AutoLauncher:loading XML configuration node");
+		Jode config = root.single("configuration");
+		System.out.println("AutoLauncher:loading XML processingPath node");
+		Jode settings = config.first("config");
+		String processingPath = settings.attribute("processingPath").v;
+		System.out.println("processingPath = "+processingPath);
+		
+		String javaPath = "java";
+		if(settings.hasAttribute("javaPath"))
+			javaPath = settings.attribute("javaPath").v;
+		
+		String cachePath = FollowerAgent.DEFAULT_CACHE_PATH;
+		if(settings.hasAttribute("cachePath"))
+			cachePath = settings.attribute("cachePath").v;
+		
+		if(settings.hasAttribute("launcher"))
+			launcher_ = settings.attribute("launcher").v;
+		
+		if(settings.hasAttribute("agentPort"))
+			agentPort_ = Integer.parseInt(settings.attribute("agentPort").v);
+		
+		int parallelism = 8;
+		if(settings.hasAttribute("launchParallelism"))
+			parallelism = Math.max(1, Integer.parseInt(settings.attribute("launchParallelism").v));
+		
+		// collect the processes to launch before doing any work
+		final Vector<String[]> processes = new Vector<String[]>();
+		LinkedHashSet<String> hosts = new LinkedHashSet<String>();
+		for(Jode child : config.children())
+		{
+			if (child.n.equals("process"))
+			{
+				if(!child.hasAttribute("rank"))
+				{
+					System.out.println("Rank not specified in configuration for all processes. Aborting.");
+					System.exit(-1);
+				}
+				
+				String display=":0.0";
+				if(child.hasAttribute("display"))
+					display = child.attribute("display").v;
+				
+				// CPUs to pin the rank to, in taskset's list format
+				String cpus = null;
+				if(child.hasAttribute("cpus"))
+					cpus = child.attribute("cpus").v;
+				
+				processes.add(new String[] { child.attribute("rank").v, child.attribute("host").v, display, cpus });
+				hosts.add(child.attribute("host").v);
+			}
+		}
+		
+		// compile the sketch once, every rank runs the same artifact
+		File libraries = build(processingPath);
+		if(libraries == null)
+		{
+			System.out.println("AutoLauncher:unable to build the sketch. Aborting.");
+			System.exit(-1);
+		}
+		
+		String hash = hash(libraries);
+		if(hash == null)
+			System.exit(-1);
+		final String artifact = cachePath + "/" + hash;
+		System.out.println("AutoLauncher:built " + artifact);
+		
+		// stage the artifact to every host that does not have it yet, then start the ranks
+		ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+		final File[] jars = jars(libraries);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		for(final String host : hosts)
+		{
+			pool.execute(new Runnable() {
+				public void run() {
+					if(!launcherFor(host).stage(host, jars, artifact))
+						failed.set(true);
+				}
+			});
+		}
+		await(pool);
+		if(failed.get())
+		{
+			System.out.println("AutoLauncher:unable to stage the sketch on every host. Aborting.");
+			System.exit(-1);
+		}
+		
+		pool = Executors.newFixedThreadPool(parallelism);
+		final String sketchName = new File(sketchPath_).getName();
+		final String java = javaPath;
+		for(final String[] process : processes)
+		{
+			pool.execute(new Runnable() {
+				public void run() {
+					launch(process[0], process[1], process[2], process[3], java, artifact, sketchName);
+				}
+			});
+		}
+		await(pool);
+	}
+	
+	/**
+	 * Exports the sketch with processing-java on this host.
+	 * @return The folder holding the sketch jar and its library jars, or null if the build failed.
+	 */
+	File build(String processingPath)
+	{
+		File output = new File(sketchPath_, BUILD_FOLDER);
+		String[] command = { processingPath + "/processing-java",
+								"--sketch="+sketchPath_,
+								"--output="+output.getPath(),
+								"--force",
+								"--export" };
+		if(execute(command, "build") != 0)
+			return null;
+		
+		return findLibraries(output);
+	}
+	
+	// the exported application keeps its jars in a lib folder, its location depends on the Processing version
+	private static File findLibraries(File folder)
+	{
+		File[] files = folder.listFiles();
+		if(files == null)
+			return null;
+		Arrays.sort(files);
+		for(File f : files)
+		{
+			if(f.isDirectory() && f.getName().equals("lib") && jars(f).length > 0)
+				return f;
+		}
+		for(File f : files)
+		{
+			if(f.isDirectory())
+			{
+				File found = findLibraries(f);
+				if(found != null)
+					return found;
+			}
+		}
+		return null;
+	}
+	
+	private static File[] jars(File folder)
+	{
+		File[] jars = folder.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".jar");
+			}
+		});
+		if(jars == null)
+			return new File[0];
+		Arrays.sort(jars);
+		return jars;
+	}
+	
+	/**
+	 * Hashes the names and contents of the jars, so an unchanged build is never staged twice.
+	 */
+	static String hash(File libraries)
+	{
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = new byte[65536];
+			for(File jar : jars(libraries))
+			{
+				digest.update(jar.getName().getBytes("UTF-8"));
+				InputStream in = new FileInputStream(jar);
+				try {
+					int n;
+					while((n = in.read(buffer)) > 0)
+						digest.update(buffer, 0, n);
+				} finally {
+					in.close();
+				}
+			}
+			
+			StringBuilder hex = new StringBuilder();
+			for(byte b : digest.digest())
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (Exception e) {
+			System.out.println("AutoLauncher:unable to hash the build");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets the backend that stages to and starts ranks on the host.
+	 */
+	Launcher launcherFor(String hostName)
+	{
+		if(launcher_.equals("local") || (launcher_.equals("auto") && LocalLauncher.isLocal(hostName)))
+			return local_;
+		return ssh_;
+	}
+	
+	/**
+	 * Starts one rank on its host from the staged artifact.
+	 */
+	void launch(final String rank, final String hostName, String display, String cpus, String javaPath, String artifact, String sketchName)
+	{
+		// a resident agent on the host starts the sketch without a new JVM
+		if(agentPort_ > 0)
+		{
+			try {
+				agentSessions_.add(FollowerAgent.request(hostName, agentPort_, artifact, sketchName, sketchPath_, Integer.parseInt(rank)));
+				System.out.println("AutoLauncher:rank " + rank + " started by the agent on " + hostName);
+				return;
+			} catch (IOException e) {
+				System.out.println("AutoLauncher:no agent for rank " + rank + " on " + hostName + " (" + e.getMessage() + "), starting a new JVM");
+			}
+		}
+		
+		Map<String, String> env = new LinkedHashMap<String, String>();
+		env.put("RANK", rank);
+		env.put("DISPLAY", display);
+		
+		// the sketch reads its data folder relative to the working directory
+		String[] command = { javaPath, "-cp", artifact + "/*", sketchName };
+
+		// start the process and merge output streams of child process' with head stream
+		try {
+			java.lang.Process p = launcherFor(hostName).start(hostName, env, sketchPath_, cpus, command);
+			processVector_.add(p);
+			forward(p.getInputStream(), hostName + "-rank" + rank);
+		} catch (Exception e) {
+			System.out.println("AutoLauncher:unable to launch rank " + rank + " on " + hostName);
+			e.printStackTrace();
+		}
+	}
+	
+	// runs a command to completion, printing its output with a prefix
+	static int execute(String[] command, String prefix)
+	{
+		try {
+			ProcessBuilder pb = new ProcessBuilder(command);
+			pb.redirectErrorStream(true);
+			java.lang.Process p = pb.start();
+			Thread output = forward(p.getInputStream(), prefix);
+			int exitCode = p.waitFor();
+			output.join();
+			return exitCode;
+		} catch (Exception e) {
+			System.out.println("AutoLauncher:unable to run " + command[0]);
+			e.printStackTrace();
+			return -1;
+		}
+	}
+	
+	// queues a child's output for the log thread, one line at a time
+	private static Thread forward(final InputStream is, final String prefix)
+	{
+		final LogRing log = LogAggregator.get().ring(prefix);
+		Thread thread = new Thread(new Runnable() {
+		    public void run() {
+		        try {
+		            BufferedReader reader =
+		                new BufferedReader(new InputStreamReader(is));
+		            String line;
+		            while ((line = reader.readLine()) != null) {
+		                log.offer(line);
+		            }
+		        } catch (IOException e) {
+		            e.printStackTrace();
+		        } finally {
+		            try {
+						is.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+		        }
+		    }
+		});
+		thread.start();
+		return thread;
+	}
+	
+	private static void await(ExecutorService pool)
+	{
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	public void replace() {
+	      String oldFileName = "~/.processing/preferences.txt";
+	      String tmpFileName = "~/.processing/tmp_preferences.txt";
+
+	      BufferedReader br = null;
+	      BufferedWriter bw = null;
+	      try {
+	         br = new BufferedReader(new FileReader(oldFileName));
+	         bw = new BufferedWriter(new FileWriter(tmpFileName));
+	         String line;
+	         while ((line = br.readLine()) != null) {
+	            if (line.contains("run.display"))
+	               line = line.replaceAll(":0.0", "");
+	            bw.write(line+"\n");
+	         }
+	      } catch (Exception e) {
+	         return;
+	      } finally {
+	         try {
+	            if(br != null)
+	               br.close();
+	         } catch (IOException e) {
+	            //
+	         }
+	         try {
+	            if(bw != null)
+	               bw.close();
+	         } catch (IOException e) {
+	            //
+	         }
+	      }
+	      // Once everything is complete, delete old file..
+	      File oldFile = new File(oldFileName);
+	      oldFile.delete();
+
+	      // And rename tmp file's name to old file name
+	      File newFile = new File(tmpFileName);
+	      newFile.renameTo(oldFile);
+
+	}
+	*/
+	
+	public void shutDown()
+	{
+		// the agents unload the sketches once their requests are closed
+		for(Socket s : agentSessions_)
+		{
+			try {
+				s.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		// kill all previously launched process'
+		for(java.lang.Process p : processVector_)
+			p.destroy();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,14 @@
+package mpe;
+
+/**
+ * Receives notice of finished bulk transfers. Called from a network thread, so implementations should hand the
+ * data over to the sketch rather than draw with it directly.
+ *
+ */
+public interface BulkListener {
+	
+	/**
+	 * Called on the leader once every follower has received the transfer, and on a follower once it has received it.
+	 */
+	public void bulkComplete(BulkTransfer transfer);
+}
@@ -0,0 +1,136 @@
+package mpe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Follower side of the bulk channel. Receives transfers from the leader's BulkSender and acknowledges every
+ * chunk, which paces the sender.
+ *
+ */
+public class BulkReceiver extends Thread {
+	
+	String host_;
+	int port_;
+	
+	Process process_;
+	
+	// transfers received but not yet taken by the sketch
+	final ConcurrentLinkedQueue<BulkTransfer> received_ = new ConcurrentLinkedQueue<BulkTransfer>();
+	
+	private volatile BulkListener listener_;
+	
+	public BulkReceiver(String host, int port, Process p)
+	{
+		super("mpe-bulk-receiver");
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+		host_ = host;
+		port_ = port;
+		process_ = p;
+	}
+	
+	public void setListener(BulkListener listener)
+	{
+		listener_ = listener;
+	}
+	
+	public void run()
+	{
+		Socket socket = null;
+		while(socket == null)
+		{
+			try {
+				socket = new Socket(host_, port_);
+			} catch (IOException e) {
+				if(process_.getDebug()) process_.print("Bulk channel not available yet, retrying.");
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e1) {
+					return;
+				}
+			}
+		}
+		
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			byte[] chunk = new byte[BulkSender.CHUNK_SIZE];
+			
+			while(true)
+			{
+				if(in.readByte() != BulkSender.BEGIN)
+					throw new IOException("Malformed bulk transfer");
+				
+				String name = in.readUTF();
+				byte kind = in.readByte();
+				long size = in.readLong();
+				
+				BulkTransfer transfer;
+				OutputStream sink;
+				if(kind == BulkSender.BYTES)
+				{
+					transfer = new BulkTransfer(name, new byte[(int) size]);
+					sink = null;
+				}
+				else
+				{
+					File file = File.createTempFile("mpe-bulk-", "-" + name.replaceAll("[^A-Za-z0-9._-]", "_"));
+					file.deleteOnExit();
+					sink = new FileOutputStream(file);
+					transfer = new BulkTransfer(name, file);
+					transfer.size_ = size;
+				}
+				
+				long received = 0;
+				try {
+					while(received < size)
+					{
+						if(in.readByte() != BulkSender.CHUNK)
+							throw new IOException("Malformed bulk chunk");
+						
+						int n = in.readInt();
+						if(sink == null)
+						{
+							in.readFully(transfer.data_, (int) received, n);
+						}
+						else
+						{
+							in.readFully(chunk, 0, n);
+							sink.write(chunk, 0, n);
+						}
+						received += n;
+						transfer.transferred_.set(received);
+						
+						out.writeLong(received);
+						out.flush();
+					}
+				} finally {
+					if(sink != null)
+						sink.close();
+				}
+				
+				if(process_.getDebug()) process_.print("Received bulk transfer " + name + " (" + size + " bytes)");
+				
+				transfer.complete();
+				
+				// without a listener the sketch polls with Process.nextBulk()
+				BulkListener listener = listener_;
+				if(listener != null)
+					listener.bulkComplete(transfer);
+				else
+					received_.add(transfer);
+			}
+		} catch (IOException e) {
+			System.out.println("Bulk connection to leader lost!");
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package mpe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Leader side of the bulk channel. Followers connect to a separate port, and every transfer is streamed to each
+ * of them in chunks by a low priority thread per follower. At most WINDOW chunks may be unacknowledged, so a
+ * transfer never fills the socket buffers the frame events need, and the frame events keep flowing on their
+ * own connections while it runs.
+ *
+ */
+public class BulkSender extends Thread {
+	
+	// wire format, leader to follower
+	static final byte BEGIN = 1;
+	static final byte CHUNK = 2;
+	
+	// kinds of transfers
+	static final byte BYTES = 0;
+	static final byte FILE  = 1;
+	
+	static final int CHUNK_SIZE = 256 * 1024;
+	
+	// the number of chunks that may be in flight to one follower
+	static final int WINDOW = 4;
+	
+	// one per connected follower
+	class Follower extends Thread {
+		Socket socket;
+		DataOutputStream out;
+		DataInputStream in;
+		LinkedBlockingQueue<BulkTransfer> queue = new LinkedBlockingQueue<BulkTransfer>();
+		
+		// the transfer being streamed
+		BulkTransfer current;
+		
+		// set once the connection is gone, transfers are then failed instead of queued
+		boolean lost;
+		
+		Follower(Socket s) throws IOException
+		{
+			super("mpe-bulk-" + s.getInetAddress());
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+			socket = s;
+			out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+		}
+		
+		public void run()
+		{
+			byte[] chunk = new byte[CHUNK_SIZE];
+			try {
+				while(true)
+				{
+					BulkTransfer transfer = queue.take();
+					current = transfer;
+					
+					out.writeByte(BEGIN);
+					out.writeUTF(transfer.getName());
+					out.writeByte(transfer.getData() != null ? BYTES : FILE);
+					out.writeLong(transfer.getSize());
+					out.flush();
+					
+					long sent = 0;
+					long acknowledged = 0;
+					InputStream source = transfer.open();
+					try {
+						while(sent < transfer.getSize())
+						{
+							int n = source.read(chunk, 0, (int) Math.min(CHUNK_SIZE, transfer.getSize() - sent));
+							if(n < 0)
+								throw new IOException("Bulk source " + transfer.getName() + " ended early");
+							
+							out.writeByte(CHUNK);
+							out.writeInt(n);
+							out.write(chunk, 0, n);
+							out.flush();
+							sent += n;
+							
+							// flow control, wait for the follower to catch up
+							while(sent - acknowledged > (long) WINDOW * CHUNK_SIZE)
+								acknowledged = acknowledge(transfer, acknowledged);
+						}
+					} finally {
+						source.close();
+					}
+					
+					while(acknowledged < transfer.getSize())
+						acknowledged = acknowledge(transfer, acknowledged);
+					
+					current = null;
+					transfer.finished(true);
+				}
+			} catch (InterruptedException e) {
+				// shutting down
+			} catch (IOException e) {
+				System.out.println("Bulk connection to " + socket.getInetAddress() + " lost!");
+				e.printStackTrace();
+				lose();
+			}
+		}
+		
+		// fails the transfers this follower will never receive, so waitFor() does not wait for it
+		private void lose()
+		{
+			synchronized(BulkSender.this)
+			{
+				lost = true;
+				if(current != null)
+					current.finished(false);
+				BulkTransfer transfer;
+				while((transfer = queue.poll()) != null)
+					transfer.finished(false);
+			}
+		}
+		
+		// reads the next acknowledgement and updates the progress of the transfer
+		private long acknowledge(BulkTransfer transfer, long acknowledged) throws IOException
+		{
+			long received = in.readLong();
+			transfer.transferred_.addAndGet(received - acknowledged);
+			return received;
+		}
+	}
+	
+	ServerSocket listener_;
+	
+	// the number of followers expected to connect
+	int numFollowers_;
+	
+	Vector<Follower> followers_;
+	
+	// transfers not yet acknowledged by every follower, sent to followers that connect late
+	Vector<BulkTransfer> pending_;
+	
+	Process process_;
+	
+	public BulkSender(int port, int numFollowers, Process p) throws IOException
+	{
+		super("mpe-bulk-listener");
+		setDaemon(true);
+		listener_ = new ServerSocket(port);
+		numFollowers_ = numFollowers;
+		followers_ = new Vector<Follower>();
+		pending_ = new Vector<BulkTransfer>();
+		process_ = p;
+	}
+	
+	public void run()
+	{
+		while(followers_.size() < numFollowers_)
+		{
+			try {
+				Socket socket = listener_.accept();
+				if(process_.getDebug()) process_.print("Received a bulk connection: " + socket.getInetAddress());
+				
+				Follower follower = new Follower(socket);
+				synchronized(this)
+				{
+					for(int i = 0; i < pending_.size(); i++)
+						if(!pending_.elementAt(i).isDone())
+							follower.queue.add(pending_.elementAt(i));
+					followers_.add(follower);
+				}
+				follower.start();
+			} catch (IOException e) {
+				System.out.println("Unable to accept bulk connection!");
+			}
+		}
+	}
+	
+	/**
+	 * Queues a transfer to every follower, including those that have not connected yet.
+	 */
+	public synchronized void send(BulkTransfer transfer)
+	{
+		transfer.followers_ = numFollowers_;
+		transfer.remaining_.set(numFollowers_);
+		if(numFollowers_ == 0)
+		{
+			transfer.complete();
+			return;
+		}
+		
+		pending_.add(transfer);
+		for(int i = 0; i < followers_.size(); i++)
+		{
+			if(followers_.elementAt(i).lost)
+				transfer.finished(false);
+			else
+				followers_.elementAt(i).queue.add(transfer);
+		}
+		
+		// forget transfers every follower has acknowledged
+		for(int i = pending_.size() - 1; i >= 0; i--)
+			if(pending_.elementAt(i).isDone())
+				pending_.remove(i);
+	}
+}
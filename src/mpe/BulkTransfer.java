@@ -0,0 +1,196 @@
+package mpe;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A large object or file streamed from the leader to the followers on the bulk channel, outside of the frame
+ * events. On the leader it tracks delivery to every follower, on a follower it holds the received data.
+ *
+ */
+public class BulkTransfer {
+	
+	String name_;
+	long size_;
+	
+	// exactly one of these holds the data
+	byte[] data_;
+	File file_;
+	
+	// bytes received (follower), or the sum over followers of bytes acknowledged (leader)
+	final AtomicLong transferred_ = new AtomicLong();
+	
+	// the number of followers receiving the transfer, 1 on a follower
+	int followers_ = 1;
+	
+	// followers that still have to acknowledge the whole transfer or lose their connection (leader)
+	final AtomicInteger remaining_ = new AtomicInteger();
+	
+	// followers whose connection was lost before they acknowledged the whole transfer (leader)
+	final AtomicInteger failed_ = new AtomicInteger();
+	
+	private volatile boolean done_ = false;
+	
+	private BulkListener listener_;
+	
+	BulkTransfer(String name, byte[] data)
+	{
+		name_ = name;
+		data_ = data;
+		size_ = data.length;
+	}
+	
+	BulkTransfer(String name, File file)
+	{
+		name_ = name;
+		file_ = file;
+		size_ = file.length();
+	}
+	
+	public String getName()
+	{
+		return name_;
+	}
+	
+	public long getSize()
+	{
+		return size_;
+	}
+	
+	/**
+	 * Gets the data if it was sent as a byte array or object, null if it was sent as a file.
+	 */
+	public byte[] getData()
+	{
+		return data_;
+	}
+	
+	/**
+	 * Gets the file if it was sent as a file. On a follower this is a temporary copy.
+	 */
+	public File getFile()
+	{
+		return file_;
+	}
+	
+	/**
+	 * Deserializes the data of a transfer sent with Process.sendBulk(String, Object).
+	 */
+	public Object getObject() throws IOException, ClassNotFoundException
+	{
+		if(data_ != null)
+			return Command.deserialize(data_, 0, data_.length);
+		
+		byte[] bytes = new byte[(int) size_];
+		// throws EOFException if the file is shorter than announced
+		DataInputStream in = new DataInputStream(open());
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return Command.deserialize(bytes, 0, bytes.length);
+	}
+	
+	InputStream open() throws IOException
+	{
+		if(data_ != null)
+			return new ByteArrayInputStream(data_);
+		return new FileInputStream(file_);
+	}
+	
+	/**
+	 * Gets how far the transfer has progressed, from 0 to 1. On the leader this is averaged over all followers.
+	 */
+	public float getProgress()
+	{
+		if(done_)
+			return 1;
+		long total = size_ * followers_;
+		return total == 0 ? 0 : transferred_.get() / (float) total;
+	}
+	
+	/**
+	 * True once every follower has received the transfer or lost its connection, see getFailed().
+	 */
+	public boolean isDone()
+	{
+		return done_;
+	}
+	
+	/**
+	 * Gets the number of followers that lost their bulk connection before receiving the whole transfer (leader).
+	 */
+	public int getFailed()
+	{
+		return failed_.get();
+	}
+	
+	/**
+	 * Waits until the transfer is done.
+	 */
+	public synchronized void waitFor() throws InterruptedException
+	{
+		while(!done_)
+			wait();
+	}
+	
+	/**
+	 * Waits until the transfer is done, or the timeout has passed.
+	 * @param millis The longest time to wait, in milliseconds.
+	 * @return True if the transfer is done.
+	 */
+	public synchronized boolean waitFor(long millis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + millis;
+		long left;
+		while(!done_ && (left = deadline - System.currentTimeMillis()) > 0)
+			wait(left);
+		return done_;
+	}
+	
+	/**
+	 * Sets the listener to call when the transfer is complete. Called immediately if it already is.
+	 */
+	public void setListener(BulkListener listener)
+	{
+		boolean done;
+		synchronized(this)
+		{
+			listener_ = listener;
+			done = done_;
+		}
+		if(done)
+			listener.bulkComplete(this);
+	}
+	
+	/**
+	 * Records that one follower received the transfer, or lost its connection (leader).
+	 */
+	void finished(boolean received)
+	{
+		if(!received)
+			failed_.incrementAndGet();
+		if(remaining_.decrementAndGet() == 0)
+			complete();
+	}
+	
+	void complete()
+	{
+		BulkListener listener;
+		synchronized(this)
+		{
+			done_ = true;
+			listener = listener_;
+			notifyAll();
+		}
+		if(listener != null)
+			listener.bulkComplete(this);
+	}
+}
@@ -0,0 +1,107 @@
+package mpe;
+
+/**
+ * NTP-style estimate of the leader's clock on a follower. The follower pings its parent over the existing
+ * connection, the parent answers with its own view of the leader's clock, and the sample with the shortest
+ * round trip among the recent ones gives the offset. Relays answer with their estimate, so the error of a rank
+ * grows with its depth in the tree by at most half the round trip of each hop.
+ *
+ * All times are in microseconds. Leader time counts from the moment the leader process was created.
+ *
+ */
+public class ClockSync extends Thread {
+	
+	// how many samples the estimate is chosen from
+	static final int WINDOW = 8;
+	
+	// ping interval once the window is full, the first pings go out faster
+	static final long INTERVAL = 1000;
+	static final long STARTUP_INTERVAL = 50;
+	
+	private final Process process_;
+	
+	// recent samples, as offsets and round trips
+	private final long[] offsets_ = new long[WINDOW];
+	private final long[] roundTrips_ = new long[WINDOW];
+	private int samples_ = 0;
+	
+	// leader time minus local time
+	private volatile long offset_ = 0;
+	private volatile long roundTrip_ = -1;
+	
+	public ClockSync(Process p)
+	{
+		super("mpe-clock");
+		setDaemon(true);
+		process_ = p;
+	}
+	
+	public static long localMicros()
+	{
+		return System.nanoTime() / 1000;
+	}
+	
+	/**
+	 * Converts a local time to leader time.
+	 */
+	public long toLeader(long local)
+	{
+		return local + offset_;
+	}
+	
+	/**
+	 * Converts a leader time to local time.
+	 */
+	public long toLocal(long leader)
+	{
+		return leader - offset_;
+	}
+	
+	public long getOffset()
+	{
+		return offset_;
+	}
+	
+	/**
+	 * Gets the round trip of the sample the offset was taken from, -1 before the first answer.
+	 */
+	public long getRoundTrip()
+	{
+		return roundTrip_;
+	}
+	
+	/**
+	 * Called with the parent's answer to a ping.
+	 * @param sent Our local time when the ping was sent.
+	 * @param remote The parent's leader time when it answered.
+	 */
+	synchronized void pongReceived(long sent, long remote)
+	{
+		long received = localMicros();
+		int slot = samples_++ % WINDOW;
+		roundTrips_[slot] = received - sent;
+		offsets_[slot] = remote - (sent + received) / 2;
+		
+		int best = 0;
+		int count = Math.min(samples_, WINDOW);
+		for(int i = 1; i < count; i++)
+			if(roundTrips_[i] < roundTrips_[best])
+				best = i;
+		offset_ = offsets_[best];
+		roundTrip_ = roundTrips_[best];
+	}
+	
+	public void run()
+	{
+		int sequence = 0;
+		while(true)
+		{
+			process_.sendPing(sequence++, localMicros());
+			try {
+				Thread.sleep(sequence < WINDOW ? STARTUP_INTERVAL : INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package mpe;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact encoder and decoder for one type of message, registered with Process.registerCodec(). Messages without
+ * a codec fall back to Java serialization.
+ *
+ */
+public interface Codec<T> {
+	
+	/**
+	 * Writes the value.
+	 */
+	public void encode(T value, DataOutputStream out) throws IOException;
+	
+	/**
+	 * Reads a value written by encode().
+	 */
+	public T decode(DataInputStream in) throws IOException;
+}
@@ -0,0 +1,295 @@
+package mpe;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import processing.core.PMatrix3D;
+import processing.core.PVector;
+
+/**
+ * Maps message types to codecs and tags. Every encoded value starts with the tag of its codec. Built-in codecs
+ * cover Strings, boxed primitives, primitive arrays, PVector, PMatrix3D and entity events, anything else
+ * without a registered codec is written with Java serialization.
+ *
+ * Codecs registered by the sketch are tagged in registration order, so they must be registered in the same order
+ * on every process, which is the case when they are registered in setup().
+ *
+ */
+public class CodecRegistry {
+	
+	// tags of the built-in codecs
+	static final int NULL         = 0;
+	static final int SERIALIZED   = 1;
+	static final int STRING       = 2;
+	static final int INTEGER      = 3;
+	static final int LONG         = 4;
+	static final int FLOAT        = 5;
+	static final int DOUBLE       = 6;
+	static final int BOOLEAN      = 7;
+	static final int BYTE_ARRAY   = 8;
+	static final int INT_ARRAY    = 9;
+	static final int FLOAT_ARRAY  = 10;
+	static final int DOUBLE_ARRAY = 11;
+	static final int PVECTOR      = 12;
+	static final int PMATRIX3D    = 13;
+	static final int ENTITY_EVENTS = 14;
+	static final int LONG_ARRAY   = 15;
+	
+	// the first tag of codecs registered by the sketch
+	static final int FIRST_USER_TAG = 64;
+	
+	// codecs indexed by tag
+	private final ArrayList<Codec<?>> codecs_ = new ArrayList<Codec<?>>();
+	
+	// tags by exact class
+	private final HashMap<Class<?>, Integer> tags_ = new HashMap<Class<?>, Integer>();
+	
+	public CodecRegistry()
+	{
+		put(STRING, String.class, new Codec<String>() {
+			public void encode(String value, DataOutputStream out) throws IOException { out.writeUTF(value); }
+			public String decode(DataInputStream in) throws IOException { return in.readUTF(); }
+		});
+		put(INTEGER, Integer.class, new Codec<Integer>() {
+			public void encode(Integer value, DataOutputStream out) throws IOException { out.writeInt(value); }
+			public Integer decode(DataInputStream in) throws IOException { return in.readInt(); }
+		});
+		put(LONG, Long.class, new Codec<Long>() {
+			public void encode(Long value, DataOutputStream out) throws IOException { out.writeLong(value); }
+			public Long decode(DataInputStream in) throws IOException { return in.readLong(); }
+		});
+		put(FLOAT, Float.class, new Codec<Float>() {
+			public void encode(Float value, DataOutputStream out) throws IOException { out.writeFloat(value); }
+			public Float decode(DataInputStream in) throws IOException { return in.readFloat(); }
+		});
+		put(DOUBLE, Double.class, new Codec<Double>() {
+			public void encode(Double value, DataOutputStream out) throws IOException { out.writeDouble(value); }
+			public Double decode(DataInputStream in) throws IOException { return in.readDouble(); }
+		});
+		put(BOOLEAN, Boolean.class, new Codec<Boolean>() {
+			public void encode(Boolean value, DataOutputStream out) throws IOException { out.writeBoolean(value); }
+			public Boolean decode(DataInputStream in) throws IOException { return in.readBoolean(); }
+		});
+		put(BYTE_ARRAY, byte[].class, new Codec<byte[]>() {
+			public void encode(byte[] value, DataOutputStream out) throws IOException
+			{
+				out.writeInt(value.length);
+				out.write(value);
+			}
+			public byte[] decode(DataInputStream in) throws IOException
+			{
+				byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				return value;
+			}
+		});
+		put(INT_ARRAY, int[].class, new Codec<int[]>() {
+			public void encode(int[] value, DataOutputStream out) throws IOException
+			{
+				out.writeInt(value.length);
+				for(int i = 0; i < value.length; i++)
+					out.writeInt(value[i]);
+			}
+			public int[] decode(DataInputStream in) throws IOException
+			{
+				int[] value = new int[in.readInt()];
+				for(int i = 0; i < value.length; i++)
+					value[i] = in.readInt();
+				return value;
+			}
+		});
+		put(LONG_ARRAY, long[].class, new Codec<long[]>() {
+			public void encode(long[] value, DataOutputStream out) throws IOException
+			{
+				out.writeInt(value.length);
+				for(int i = 0; i < value.length; i++)
+					out.writeLong(value[i]);
+			}
+			public long[] decode(DataInputStream in) throws IOException
+			{
+				long[] value = new long[in.readInt()];
+				for(int i = 0; i < value.length; i++)
+					value[i] = in.readLong();
+				return value;
+			}
+		});
+		put(FLOAT_ARRAY, float[].class, new Codec<float[]>() {
+			public void encode(float[] value, DataOutputStream out) throws IOException
+			{
+				out.writeInt(value.length);
+				for(int i = 0; i < value.length; i++)
+					out.writeFloat(value[i]);
+			}
+			public float[] decode(DataInputStream in) throws IOException
+			{
+				float[] value = new float[in.readInt()];
+				for(int i = 0; i < value.length; i++)
+					value[i] = in.readFloat();
+				return value;
+			}
+		});
+		put(DOUBLE_ARRAY, double[].class, new Codec<double[]>() {
+			public void encode(double[] value, DataOutputStream out) throws IOException
+			{
+				out.writeInt(value.length);
+				for(int i = 0; i < value.length; i++)
+					out.writeDouble(value[i]);
+			}
+			public double[] decode(DataInputStream in) throws IOException
+			{
+				double[] value = new double[in.readInt()];
+				for(int i = 0; i < value.length; i++)
+					value[i] = in.readDouble();
+				return value;
+			}
+		});
+		put(PVECTOR, PVector.class, new Codec<PVector>() {
+			public void encode(PVector value, DataOutputStream out) throws IOException
+			{
+				out.writeFloat(value.x);
+				out.writeFloat(value.y);
+				out.writeFloat(value.z);
+			}
+			public PVector decode(DataInputStream in) throws IOException
+			{
+				return new PVector(in.readFloat(), in.readFloat(), in.readFloat());
+			}
+		});
+		put(PMATRIX3D, PMatrix3D.class, new Codec<PMatrix3D>() {
+			public void encode(PMatrix3D m, DataOutputStream out) throws IOException
+			{
+				out.writeFloat(m.m00); out.writeFloat(m.m01); out.writeFloat(m.m02); out.writeFloat(m.m03);
+				out.writeFloat(m.m10); out.writeFloat(m.m11); out.writeFloat(m.m12); out.writeFloat(m.m13);
+				out.writeFloat(m.m20); out.writeFloat(m.m21); out.writeFloat(m.m22); out.writeFloat(m.m23);
+				out.writeFloat(m.m30); out.writeFloat(m.m31); out.writeFloat(m.m32); out.writeFloat(m.m33);
+			}
+			public PMatrix3D decode(DataInputStream in) throws IOException
+			{
+				PMatrix3D m = new PMatrix3D();
+				m.m00 = in.readFloat(); m.m01 = in.readFloat(); m.m02 = in.readFloat(); m.m03 = in.readFloat();
+				m.m10 = in.readFloat(); m.m11 = in.readFloat(); m.m12 = in.readFloat(); m.m13 = in.readFloat();
+				m.m20 = in.readFloat(); m.m21 = in.readFloat(); m.m22 = in.readFloat(); m.m23 = in.readFloat();
+				m.m30 = in.readFloat(); m.m31 = in.readFloat(); m.m32 = in.readFloat(); m.m33 = in.readFloat();
+				return m;
+			}
+		});
+		put(ENTITY_EVENTS, EntityEvent[].class, new Codec<EntityEvent[]>() {
+			public void encode(EntityEvent[] events, DataOutputStream out) throws IOException
+			{
+				out.writeInt(events.length);
+				for(int i = 0; i < events.length; i++)
+				{
+					EntityEvent e = events[i];
+					out.writeByte(e.kind);
+					out.writeInt(e.id);
+					out.writeFloat(e.x);
+					out.writeFloat(e.y);
+					out.writeFloat(e.w);
+					out.writeFloat(e.h);
+					CodecRegistry.this.encode(e.state, out);
+				}
+			}
+			public EntityEvent[] decode(DataInputStream in) throws IOException
+			{
+				EntityEvent[] events = new EntityEvent[in.readInt()];
+				try {
+					for(int i = 0; i < events.length; i++)
+						events[i] = new EntityEvent(in.readByte(), in.readInt(), in.readFloat(), in.readFloat(),
+								in.readFloat(), in.readFloat(), CodecRegistry.this.decode(in));
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Unknown entity state class: " + e.getMessage());
+				}
+				return events;
+			}
+		});
+		
+		while(codecs_.size() < FIRST_USER_TAG)
+			codecs_.add(null);
+	}
+	
+	// installs a codec under a fixed tag
+	private void put(int tag, Class<?> type, Codec<?> codec)
+	{
+		while(codecs_.size() <= tag)
+			codecs_.add(null);
+		codecs_.set(tag, codec);
+		tags_.put(type, tag);
+	}
+	
+	/**
+	 * Registers a codec for a type, replacing Java serialization for values of exactly that class.
+	 */
+	public synchronized <T> void register(Class<T> type, Codec<T> codec)
+	{
+		Integer tag = tags_.get(type);
+		if(tag != null && tag >= FIRST_USER_TAG)
+		{
+			codecs_.set(tag, codec);
+			return;
+		}
+		put(codecs_.size(), type, codec);
+	}
+	
+	/**
+	 * Writes the tag of the value's codec followed by the encoded value.
+	 */
+	@SuppressWarnings("unchecked")
+	public void encode(Object value, DataOutputStream out) throws IOException
+	{
+		if(value == null)
+		{
+			out.writeShort(NULL);
+			return;
+		}
+		
+		Integer tag;
+		Codec<Object> codec = null;
+		synchronized(this)
+		{
+			tag = tags_.get(value.getClass());
+			if(tag != null)
+				codec = (Codec<Object>) codecs_.get(tag);
+		}
+		
+		if(codec == null)
+		{
+			byte[] bytes = Command.serialize(value);
+			out.writeShort(SERIALIZED);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			return;
+		}
+		
+		out.writeShort(tag);
+		codec.encode(value, out);
+	}
+	
+	/**
+	 * Reads a value written by encode().
+	 */
+	public Object decode(DataInputStream in) throws IOException, ClassNotFoundException
+	{
+		int tag = in.readUnsignedShort();
+		if(tag == NULL)
+			return null;
+		
+		if(tag == SERIALIZED)
+		{
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return Command.deserialize(bytes, 0, bytes.length);
+		}
+		
+		Codec<?> codec;
+		synchronized(this)
+		{
+			codec = tag < codecs_.size() ? codecs_.get(tag) : null;
+		}
+		if(codec == null)
+			throw new IOException("No codec registered for tag " + tag + ", register codecs in the same order on every process");
+		return codec.decode(in);
+	}
+}
@@ -0,0 +1,15 @@
+package mpe;
+
+/**
+ * Combines two contributions to a reduce or allreduce. Must be associative and commutative, since relays combine
+ * the contributions of their subtree in arrival order. Registered under the same name on every process.
+ *
+ */
+public interface Combiner {
+	
+	/**
+	 * Combines two contributions into a new value. Neither a nor b may be modified, the same decoded values can
+	 * also be delivered to the sketch by a gather.
+	 */
+	public Object combine(Object a, Object b);
+}
@@ -0,0 +1,80 @@
+package mpe;
+
+/**
+ * The built-in combiners, registered as "sum", "min" and "max". They work element-wise on int[], long[], float[]
+ * and double[] of equal length, and on boxed Integer, Long, Float and Double. The result is always a new value,
+ * the contributions may also be held by a gather.
+ *
+ */
+public class Combiners {
+	
+	static final int SUM = 0;
+	static final int MIN = 1;
+	static final int MAX = 2;
+	
+	public static final Combiner SUM_COMBINER = new ElementWise(SUM);
+	public static final Combiner MIN_COMBINER = new ElementWise(MIN);
+	public static final Combiner MAX_COMBINER = new ElementWise(MAX);
+	
+	static class ElementWise implements Combiner {
+		final int op;
+		
+		ElementWise(int op)
+		{
+			this.op = op;
+		}
+		
+		public Object combine(Object a, Object b)
+		{
+			if(a instanceof int[])
+			{
+				int[] x = (int[]) a, y = (int[]) b, r = new int[x.length];
+				for(int i = 0; i < x.length; i++)
+					r[i] = op == SUM ? x[i] + y[i] : op == MIN ? Math.min(x[i], y[i]) : Math.max(x[i], y[i]);
+				return r;
+			}
+			if(a instanceof long[])
+			{
+				long[] x = (long[]) a, y = (long[]) b, r = new long[x.length];
+				for(int i = 0; i < x.length; i++)
+					r[i] = op == SUM ? x[i] + y[i] : op == MIN ? Math.min(x[i], y[i]) : Math.max(x[i], y[i]);
+				return r;
+			}
+			if(a instanceof float[])
+			{
+				float[] x = (float[]) a, y = (float[]) b, r = new float[x.length];
+				for(int i = 0; i < x.length; i++)
+					r[i] = op == SUM ? x[i] + y[i] : op == MIN ? Math.min(x[i], y[i]) : Math.max(x[i], y[i]);
+				return r;
+			}
+			if(a instanceof double[])
+			{
+				double[] x = (double[]) a, y = (double[]) b, r = new double[x.length];
+				for(int i = 0; i < x.length; i++)
+					r[i] = op == SUM ? x[i] + y[i] : op == MIN ? Math.min(x[i], y[i]) : Math.max(x[i], y[i]);
+				return r;
+			}
+			if(a instanceof Integer)
+			{
+				int x = (Integer) a, y = (Integer) b;
+				return op == SUM ? x + y : op == MIN ? Math.min(x, y) : Math.max(x, y);
+			}
+			if(a instanceof Long)
+			{
+				long x = (Long) a, y = (Long) b;
+				return op == SUM ? x + y : op == MIN ? Math.min(x, y) : Math.max(x, y);
+			}
+			if(a instanceof Float)
+			{
+				float x = (Float) a, y = (Float) b;
+				return op == SUM ? x + y : op == MIN ? Math.min(x, y) : Math.max(x, y);
+			}
+			if(a instanceof Double)
+			{
+				double x = (Double) a, y = (Double) b;
+				return op == SUM ? x + y : op == MIN ? Math.min(x, y) : Math.max(x, y);
+			}
+			throw new IllegalArgumentException("Cannot combine " + (a == null ? "null" : a.getClass().getName()));
+		}
+	}
+}
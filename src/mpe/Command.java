@@ -1,25 +1,217 @@
 package mpe;
 
-import java.io.Serializable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 
 //import processing.event.KeyEvent;
 //import processing.event.MouseEvent;
 
 /**
- * Serializable communication object used between processes.
+ * Binary communication message used between processes.
+ *
+ * On the wire a command is length-prefixed: [int length][byte opcode][byte flags][int frame][payload],
+ * where length counts every byte that follows the length field itself. A Command is meant to be reused,
+ * the payload buffer only grows when a larger message is read.
  * @author Brandt Westing TACC
  *
  */
-public class Command implements Serializable {
+public class Command {
+
+	// opcodes
+	public static final byte FRAME_EVENT = 1;
+	public static final byte END_FRAME   = 2;
+	
+	// asks the leader to resend the frame event with the frame number, after a lost datagram
+	public static final byte REPAIR      = 3;
 	
+	// messages for one rank, sent ahead of the frame event of their frame
+	public static final byte MESSAGE     = 4;
+	
+	// the first command a child sends to its parent, the frame field holds the child's rank, see Handshake
+	public static final byte HELLO       = 5;
+	
+	// clock synchronization, the payload holds [long sent] in a PING and [long sent][long leader time] in a PONG
+	public static final byte PING        = 6;
+	public static final byte PONG        = 7;
+
+	// the parent's answer to a HELLO, see Handshake
+	public static final byte WELCOME     = 8;
+
+	// flags
+	// the payload is compressed, see PayloadCompressor
+	public static final byte COMPRESSED  = 0x01;
+	
+	// the frame event payload starts with the ranks that get a MESSAGE for this frame: [short n][int rank]*n
+	public static final byte TARGETS     = 0x02;
+	
+	// the frame event payload starts with [long leader time], and [long seed] if SEEDED is also set
+	public static final byte STAMPED     = 0x04;
+	public static final byte SEEDED      = 0x08;
+	
+	// size of opcode, flags and frame number
+	static final int HEADER_SIZE = 6;
+
+	byte opcode;
+
+	// payload encoding options
+	byte flags;
+
+	// the frame sequence number this command belongs to
+	int frame;
+
+	// payload section, only the first payloadLength bytes are valid
+	byte[] payload = new byte[0];
+	int payloadLength;
+
+	//MouseEvent m;
+	//KeyEvent k;
+
+	public Command()
+	{
+	}
+
+	public Command(byte opcode, int frame)
+	{
+		this.opcode = opcode;
+		this.frame = frame;
+	}
+
 	/**
-	 * Autogenerated serial ID
+	 * Sets the payload section of this command. The array is not copied.
 	 */
-	private static final long serialVersionUID = 2282916117561401433L;
+	public void setPayload(byte[] data)
+	{
+		if(data == null)
+		{
+			payloadLength = 0;
+			return;
+		}
+		payload = data;
+		payloadLength = data.length;
+	}
+
+	public boolean hasPayload()
+	{
+		return payloadLength > 0;
+	}
+
+	/**
+	 * Writes this command to the stream. The caller is responsible for flushing.
+	 */
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(HEADER_SIZE + payloadLength);
+		out.writeByte(opcode);
+		out.writeByte(flags);
+		out.writeInt(frame);
+		if(payloadLength > 0)
+			out.write(payload, 0, payloadLength);
+	}
+
+	/**
+	 * Encodes this command, including its length prefix, into a new array. Used to serialize a
+	 * command once and hand the same bytes to several connections.
+	 */
+	public byte[] encode()
+	{
+		byte[] data = new byte[4 + HEADER_SIZE + payloadLength];
+		int length = HEADER_SIZE + payloadLength;
+		data[0] = (byte) (length >>> 24);
+		data[1] = (byte) (length >>> 16);
+		data[2] = (byte) (length >>> 8);
+		data[3] = (byte) length;
+		data[4] = opcode;
+		data[5] = flags;
+		data[6] = (byte) (frame >>> 24);
+		data[7] = (byte) (frame >>> 16);
+		data[8] = (byte) (frame >>> 8);
+		data[9] = (byte) frame;
+		System.arraycopy(payload, 0, data, 4 + HEADER_SIZE, payloadLength);
+		return data;
+	}
+
+	/**
+	 * Reads the next command from the stream into this object.
+	 * @throws java.io.EOFException if the remote end hung up.
+	 */
+	public void read(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if(length < HEADER_SIZE)
+			throw new IOException("Malformed command, length: " + length);
+
+		opcode = in.readByte();
+		flags = in.readByte();
+		frame = in.readInt();
+
+		payloadLength = length - HEADER_SIZE;
+		if(payload.length < payloadLength)
+			payload = new byte[payloadLength];
+		in.readFully(payload, 0, payloadLength);
+	}
+
+	/**
+	 * Reads a command from an array holding exactly one encoded command, as received in a datagram.
+	 */
+	public void read(byte[] data, int offset, int length) throws IOException
+	{
+		if(length < 4 + HEADER_SIZE)
+			throw new IOException("Malformed command, length: " + length);
+		
+		int declared = ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+				| ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+		if(declared != length - 4)
+			throw new IOException("Truncated command, length: " + declared);
+		
+		opcode = data[offset + 4];
+		flags = data[offset + 5];
+		frame = ((data[offset + 6] & 0xFF) << 24) | ((data[offset + 7] & 0xFF) << 16)
+				| ((data[offset + 8] & 0xFF) << 8) | (data[offset + 9] & 0xFF);
+		
+		payloadLength = declared - HEADER_SIZE;
+		if(payload.length < payloadLength)
+			payload = new byte[payloadLength];
+		System.arraycopy(data, offset + 4 + HEADER_SIZE, payload, 0, payloadLength);
+	}
+
+	/**
+	 * Reads a big-endian long from an array.
+	 */
+	static long readLong(byte[] data, int offset)
+	{
+		long value = 0;
+		for(int i = 0; i < 8; i++)
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		return value;
+	}
 	
-	public
-		String command;
-		Object att;
-		//MouseEvent m;
-		//KeyEvent k;
+	/**
+	 * Serializes an attribute object into a payload with default Java serialization.
+	 */
+	static byte[] serialize(Object attribute) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(attribute);
+		oos.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Deserializes an attribute object from a payload section.
+	 */
+	static Object deserialize(byte[] data, int offset, int length) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+		try {
+			return ois.readObject();
+		} finally {
+			ois.close();
+		}
+	}
 }
@@ -0,0 +1,97 @@
+package mpe;
+
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * Combines several transports, for example sockets for remote children and shared memory for local ones.
+ * Each member accepts its own children, and the members connect concurrently.
+ *
+ */
+public class CompositeTransport implements Transport {
+	
+	Vector<Transport> transports_;
+	Vector<Integer> counts_;
+	
+	public CompositeTransport()
+	{
+		transports_ = new Vector<Transport>();
+		counts_ = new Vector<Integer>();
+	}
+	
+	/**
+	 * Adds a member transport.
+	 * 
+	 * @param transport The member.
+	 * @param numFollowers The number of children the member accepts.
+	 */
+	public void add(Transport transport, int numFollowers)
+	{
+		transports_.add(transport);
+		counts_.add(numFollowers);
+	}
+	
+	public void connect(final int port, int numFollowers) throws IOException
+	{
+		final IOException[] failure = new IOException[1];
+		Vector<Thread> threads = new Vector<Thread>();
+		
+		for(int i = 1; i < transports_.size(); i++)
+		{
+			final Transport transport = transports_.elementAt(i);
+			final int count = counts_.elementAt(i);
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						transport.connect(port, count);
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		
+		if(transports_.size() > 0)
+			transports_.elementAt(0).connect(port, counts_.elementAt(0));
+		
+		for(int i = 0; i < threads.size(); i++)
+		{
+			try {
+				threads.elementAt(i).join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if(failure[0] != null)
+			throw failure[0];
+	}
+	
+	public void start()
+	{
+		for(int i = 0; i < transports_.size(); i++)
+			transports_.elementAt(i).start();
+	}
+	
+	public void broadcast(byte[] encoded)
+	{
+		for(int i = 0; i < transports_.size(); i++)
+			transports_.elementAt(i).broadcast(encoded);
+	}
+	
+	public boolean send(int rank, byte[] encoded)
+	{
+		for(int i = 0; i < transports_.size(); i++)
+			if(transports_.elementAt(i).send(rank, encoded))
+				return true;
+		return false;
+	}
+	
+	public void shutDown()
+	{
+		for(int i = 0; i < transports_.size(); i++)
+			transports_.elementAt(i).shutDown();
+	}
+}
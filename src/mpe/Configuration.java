@@ -2,6 +2,11 @@ package mpe;
 
 import java.io.File;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 // XML parser library includes
@@ -33,12 +38,111 @@ public class Configuration {
 	private int rank_;
 	private boolean debug_ = true;
 	
+	// leader networking, "threaded" (one thread per follower) or "nio" (single selector thread)
+	private String transport_ = "threaded";
+	
+	// how the leader waits for the end-of-frame messages of its followers
+	private WaitStrategy barrierWait_ = WaitStrategy.PARK;
+	
+	// how the render thread waits for the next frame event
+	private WaitStrategy frameWait_ = WaitStrategy.PARK;
+	
+	// how many frame events the leader may issue before it collects the oldest end-of-frame messages
+	private int pipelineDepth_ = 1;
+	
 	// are we the leader process?
 	boolean isLeader_ = false;
 	
 	// the number of follower processes (total num processes - 1)
 	int numFollowers_;
 	
+	// the number of processes connected directly to this one (the leader, or a relay)
+	int numChildren_ = 0;
+	
+	// the rank this process connects to, -1 for the head
+	int parent_ = -1;
+	
+	// the port on which this process accepts children, -1 unless it is a relay
+	int relayPort_ = -1;
+	
+	// are children on the same host connected through shared memory?
+	private boolean sharedMemory_ = false;
+	
+	// the host this process runs on, as named in the configuration
+	private String host_ = null;
+	
+	// the ranks of the children running on our host
+	private int[] localChildren_ = new int[0];
+	
+	// does this process reach its parent through shared memory?
+	private boolean sharedUpstream_ = false;
+	
+	// multicast group and port for frame events, null if frame events only travel over TCP
+	private String multicastGroup_ = null;
+	private int multicastPort_ = 9100;
+	
+	// name or address of the interface multicast uses, null for the system's default route
+	private String multicastInterface_ = null;
+	
+	// the head, even when this process connects to a relay
+	private String headHost_ = null;
+	
+	// the leader's port for bulk transfers, -1 if the bulk channel is disabled
+	private int bulkPort_ = -1;
+	
+	// how many messages a delta channel sends between full keyframes
+	private int keyframeInterval_ = 60;
+	
+	// how frame event payloads are compressed, and the smallest payload that is
+	private String compression_ = PayloadCompressor.NONE;
+	private int compressionThreshold_ = 1024;
+	
+	// is every frame stamped with a seed for random() and noise()?
+	private boolean frameSeed_ = false;
+	
+	// updates per second sent on interpolated channels, 0 for every frame
+	private float tickRate_ = 0;
+	
+	// the folder every rank writes its log file to, null for the console only
+	private String logPath_;
+	
+	// frames between the state hash checks of a lockstep simulation
+	private int lockstepHashInterval_ = 30;
+	
+	// the viewport of every follower rank in master space: x, y, width, height
+	private final HashMap<Integer, int[]> viewports_ = new HashMap<Integer, int[]>();
+	
+	// the parent of every follower rank, -1 for the head
+	private final HashMap<Integer, Integer> parents_ = new HashMap<Integer, Integer>();
+	
+	// the rank a FollowerAgent bound this copy of the library to, takes precedence over the RANK variable
+	private static volatile Integer boundRank_;
+	
+	/**
+	 * Binds every Configuration created afterwards to a rank. Used by FollowerAgent, which loads each session
+	 * into its own class loader and so cannot pass the rank through the environment.
+	 */
+	public static void bindRank(int rank)
+	{
+		boundRank_ = rank;
+	}
+	
+	// the cache a FollowerAgent keeps between sessions, or this JVM's own outside an agent
+	private static volatile Map<String, Object> agentCache_ = new ConcurrentHashMap<String, Object>();
+	
+	/**
+	 * Hands this copy of the library the agent's cache, see Process.getAgentCache(). Used by FollowerAgent.
+	 */
+	public static void bindAgentCache(Map<String, Object> cache)
+	{
+		agentCache_ = cache;
+	}
+	
+	public static Map<String, Object> getAgentCache()
+	{
+		return agentCache_;
+	}
+	
 	// this constructor is in case you forget the file location or just omit it
 	public Configuration(PApplet p)
 	{
@@ -79,7 +183,11 @@ public class Configuration {
 		// my DISPLAY identifier
 		display_ = System.getenv("DISPLAY");
 		
-		if(System.getenv("RANK") != null)
+		if(boundRank_ != null)
+			rank_ = boundRank_;
+		else if(System.getProperty("mpe.rank") != null)
+			rank_ = Integer.valueOf(System.getProperty("mpe.rank"));
+		else if(System.getenv("RANK") != null)
 			rank_ = Integer.valueOf(System.getenv("RANK"));
 		else rank_ = -1; // head node in auto-start
 		
@@ -100,6 +208,51 @@ public class Configuration {
 		
 		numFollowers_ = config.children().getLength() - 3;
 		System.out.println("numFollowers_ = " + numFollowers_);
+		// optional settings in the config node
+		Jode settings = config.first("config");
+		if(settings != null)
+		{
+			if(settings.hasAttribute("transport"))
+				transport_ = settings.attribute("transport").v;
+			if(settings.hasAttribute("barrierWait"))
+				barrierWait_ = WaitStrategy.parse(settings.attribute("barrierWait").v);
+			if(settings.hasAttribute("frameWait"))
+				frameWait_ = WaitStrategy.parse(settings.attribute("frameWait").v);
+			if(settings.hasAttribute("pipelineDepth"))
+				pipelineDepth_ = Math.max(1, Integer.parseInt(settings.attribute("pipelineDepth").v));
+			if(settings.hasAttribute("sharedMemory"))
+			{
+				sharedMemory_ = Integer.parseInt(settings.attribute("sharedMemory").v) == 1;
+				if(sharedMemory_ && !SharedRing.isSupported())
+				{
+					System.out.println("Shared memory rings need an x86 processor, using TCP on " + System.getProperty("os.arch"));
+					sharedMemory_ = false;
+				}
+			}
+			if(settings.hasAttribute("multicastGroup"))
+				multicastGroup_ = settings.attribute("multicastGroup").v;
+			if(settings.hasAttribute("multicastPort"))
+				multicastPort_ = Integer.parseInt(settings.attribute("multicastPort").v);
+			if(settings.hasAttribute("multicastInterface"))
+				multicastInterface_ = settings.attribute("multicastInterface").v;
+			if(settings.hasAttribute("bulkPort"))
+				bulkPort_ = Integer.parseInt(settings.attribute("bulkPort").v);
+			if(settings.hasAttribute("keyframeInterval"))
+				keyframeInterval_ = Math.max(1, Integer.parseInt(settings.attribute("keyframeInterval").v));
+			if(settings.hasAttribute("frameSeed"))
+				frameSeed_ = Integer.parseInt(settings.attribute("frameSeed").v) == 1;
+			if(settings.hasAttribute("tickRate"))
+				tickRate_ = Float.parseFloat(settings.attribute("tickRate").v);
+			if(settings.hasAttribute("logPath"))
+				logPath_ = settings.attribute("logPath").v;
+			if(settings.hasAttribute("lockstepHashInterval"))
+				lockstepHashInterval_ = Math.max(1, Integer.parseInt(settings.attribute("lockstepHashInterval").v));
+			if(settings.hasAttribute("compression"))
+				compression_ = settings.attribute("compression").v;
+			if(settings.hasAttribute("compressionThreshold"))
+				compressionThreshold_ = Integer.parseInt(settings.attribute("compressionThreshold").v);
+		}
+		
 		System.out.println("loading XML dimensions node, head");
 		Jode head = config.first("head");
 		
@@ -116,6 +269,70 @@ public class Configuration {
 			server_ = "localhost";
 		}
 		
+		headHost_ = server_;
+		if(head != null)
+			host_ = server_;
+		if(rank_ != -1 && findProcess(config, rank_) != null)
+			host_ = findProcess(config, rank_).attribute("host").v;
+		
+		// resolve the relay tree: a process with a relayPort accepts the processes naming it as their parent,
+		// every other process connects to its parent or to the head
+		Vector<Integer> localChildren = new Vector<Integer>();
+		for(Jode process : config.children())
+		{
+			if(!process.n.equals("process") || !process.hasAttribute("rank"))
+				continue;
+			
+			int rank = Integer.parseInt(process.attribute("rank").v);
+			int parent = -1;
+			if(process.hasAttribute("parent"))
+				parent = Integer.parseInt(process.attribute("parent").v);
+			
+			parents_.put(rank, parent);
+			viewports_.put(rank, viewport(process));
+			
+			if(parent == rank_)
+			{
+				numChildren_++;
+				if(sharedMemory_ && process.attribute("host").v.equals(host_))
+					localChildren.add(rank);
+			}
+			
+			if(rank == rank_)
+			{
+				parent_ = parent;
+				if(process.hasAttribute("relayPort"))
+					relayPort_ = Integer.parseInt(process.attribute("relayPort").v);
+			}
+		}
+		
+		if(parent_ != -1)
+		{
+			Jode parent = findProcess(config, parent_);
+			if(parent == null || !parent.hasAttribute("relayPort"))
+			{
+				System.out.println("ERROR: Parent " + parent_ + " of rank " + rank_ + " is not a relay. Exiting.");
+				System.exit(-1);
+			}
+			server_ = parent.attribute("host").v;
+			port_ = Integer.parseInt(parent.attribute("relayPort").v);
+			if(debug_)
+				System.out.println("Relay: "+ server_ + ":" + Integer.toString(port_));
+		}
+		
+		localChildren_ = new int[localChildren.size()];
+		for(int i = 0; i < localChildren_.length; i++)
+			localChildren_[i] = localChildren.elementAt(i);
+		
+		// children on the same host as their parent skip the network
+		sharedUpstream_ = sharedMemory_ && rank_ != -1 && server_.equals(host_);
+		
+		if(numChildren_ > 0 && relayPort_ == -1 && rank_ != -1)
+		{
+			System.out.println("ERROR: Rank " + rank_ + " has children but no relayPort. Exiting.");
+			System.exit(-1);
+		}
+		
 		// we are the head node
 		if(rank_ == -1)
 		{
@@ -235,6 +452,45 @@ public class Configuration {
 			printSettings();
 	}
 	
+	// computes the master-space rectangle covered by the screens of a process entry
+	private int[] viewport(Jode process)
+	{
+		int mini = Integer.MAX_VALUE, maxi = Integer.MIN_VALUE;
+		int minj = Integer.MAX_VALUE, maxj = Integer.MIN_VALUE;
+		for(int i = 0; i < process.children().getLength(); i++)
+		{
+			Jode screen = process.children().get(i);
+			int si = Integer.parseInt(screen.attribute("i").v);
+			int sj = Integer.parseInt(screen.attribute("j").v);
+			mini = Math.min(mini, si);
+			maxi = Math.max(maxi, si);
+			minj = Math.min(minj, sj);
+			maxj = Math.max(maxj, sj);
+		}
+		if(mini > maxi)
+			return new int[] { 0, 0, 0, 0 };
+		
+		int rangei = maxi - mini + 1;
+		int rangej = maxj - minj + 1;
+		return new int[] {
+				mini*tileRes_[0] + mini*bezels_[0],
+				minj*tileRes_[1] + minj*bezels_[1],
+				rangei*tileRes_[0] + (rangei - 1)*bezels_[0],
+				rangej*tileRes_[1] + (rangej - 1)*bezels_[1] };
+	}
+	
+	// finds the process entry with the given rank
+	private Jode findProcess(Jode config, int rank)
+	{
+		for(Jode process : config.children())
+		{
+			if(process.n.equals("process") && process.hasAttribute("rank") &&
+					Integer.parseInt(process.attribute("rank").v) == rank)
+				return process;
+		}
+		return null;
+	}
+	
 	public PApplet getApplet()
 	{
 		return applet_;
@@ -280,6 +536,18 @@ public class Configuration {
 		return offsets_;
 	}
 	
+	public int[] getTileRes() {
+		return tileRes_;
+	}
+	
+	public int[] getNumTiles() {
+		return numTiles_;
+	}
+	
+	public int[] getBezels() {
+		return bezels_;
+	}
+	
 	// Returns an array containing the (x,y) location of the sketch window 
 	
 	public int[] getWindowLocation() {
@@ -296,6 +564,178 @@ public class Configuration {
 		return isLeader_;
 	}
 	
+	/**
+	 * Gets the number of processes connected directly to this one. For the leader without relays this
+	 * is the number of followers.
+	 */
+	public int getNumChildren()
+	{
+		return numChildren_;
+	}
+	
+	/**
+	 * Determines if this follower forwards frame events to, and collects end-of-frame messages from, children.
+	 */
+	public boolean isRelay()
+	{
+		return !isLeader_ && numChildren_ > 0;
+	}
+	
+	/**
+	 * Gets the ranks of the children that run on the same host as this process and connect through shared memory.
+	 */
+	public int[] getLocalChildren()
+	{
+		return localChildren_;
+	}
+	
+	/**
+	 * Determines if this process connects to its parent through shared memory.
+	 */
+	public boolean isSharedUpstream()
+	{
+		return sharedUpstream_;
+	}
+	
+	public String getMulticastGroup()
+	{
+		return multicastGroup_;
+	}
+	
+	public int getMulticastPort()
+	{
+		return multicastPort_;
+	}
+	
+	public String getMulticastInterface()
+	{
+		return multicastInterface_;
+	}
+	
+	/**
+	 * Determines if this process receives frame events from the leader's multicast group. Only direct TCP
+	 * children of the leader do, everyone else gets them from their parent.
+	 */
+	public boolean isMulticastReceiver()
+	{
+		return multicastGroup_ != null && rank_ != -1 && parent_ == -1 && !sharedUpstream_;
+	}
+	
+	public String getHeadHost()
+	{
+		return headHost_;
+	}
+	
+	public int getBulkPort()
+	{
+		return bulkPort_;
+	}
+	
+	/**
+	 * Gets the master-space viewport of a follower rank as x, y, width, height, or null for an unknown rank.
+	 */
+	public int[] getViewport(int rank)
+	{
+		return viewports_.get(rank);
+	}
+	
+	/**
+	 * Gets the follower ranks in ascending order.
+	 */
+	public int[] getRanks()
+	{
+		int[] ranks = new int[viewports_.size()];
+		int i = 0;
+		for(Integer rank : viewports_.keySet())
+			ranks[i++] = rank;
+		Arrays.sort(ranks);
+		return ranks;
+	}
+	
+	/**
+	 * Gets the follower ranks whose viewports intersect a master-space rectangle.
+	 */
+	public int[] getRanksIn(float x, float y, float w, float h)
+	{
+		int[] ranks = getRanks();
+		int count = 0;
+		for(int i = 0; i < ranks.length; i++)
+		{
+			int[] v = viewports_.get(ranks[i]);
+			if(x < v[0] + v[2] && x + w > v[0] && y < v[1] + v[3] && y + h > v[1])
+				ranks[count++] = ranks[i];
+		}
+		return Arrays.copyOf(ranks, count);
+	}
+	
+	/**
+	 * Gets our child whose subtree contains the rank, or -2 if the rank is not below this process.
+	 */
+	public int getNextHop(int rank)
+	{
+		Integer current = rank;
+		while(current != null)
+		{
+			Integer parent = parents_.get(current);
+			if(parent == null)
+				return -2;
+			if(parent == rank_)
+				return current;
+			current = parent;
+		}
+		return -2;
+	}
+	
+	public boolean isFrameSeed()
+	{
+		return frameSeed_;
+	}
+	
+	public float getTickRate()
+	{
+		return tickRate_;
+	}
+	
+	public String getLogPath()
+	{
+		return logPath_;
+	}
+	
+	public int getLockstepHashInterval()
+	{
+		return lockstepHashInterval_;
+	}
+	
+	public int getKeyframeInterval()
+	{
+		return keyframeInterval_;
+	}
+	
+	public String getCompression()
+	{
+		return compression_;
+	}
+	
+	public int getCompressionThreshold()
+	{
+		return compressionThreshold_;
+	}
+	
+	public String getHost()
+	{
+		return host_;
+	}
+	
+	public int getRelayPort()
+	{
+		return relayPort_;
+	}
+	
+	public int getParent()
+	{
+		return parent_;
+	}
+	
 	public boolean getDebug()
 	{
 		return debug_;
@@ -306,6 +746,26 @@ public class Configuration {
 		return rank_;
 	}
 	
+	public String getTransport()
+	{
+		return transport_;
+	}
+	
+	public WaitStrategy getBarrierWait()
+	{
+		return barrierWait_;
+	}
+	
+	public WaitStrategy getFrameWait()
+	{
+		return frameWait_;
+	}
+	
+	public int getPipelineDepth()
+	{
+		return pipelineDepth_;
+	}
+	
 	public String getFilename()
 	
 	{
@@ -1,41 +1,84 @@
 package mpe;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * Wraps a TCP connection.
+ * Wraps a TCP connection, or any other pair of streams to a follower. Reads happen on this thread, writes are queued and performed by a dedicated
+ * writer thread so that a slow follower never holds up the others.
  * @author Brandt Westing TACC
  *
  */
 public class Connection extends Thread {
 	
 	Socket socket_;
-	ObjectOutputStream oos_;
-	ObjectInputStream ois_;
+	DataOutputStream dos_;
+	DataInputStream dis_;
 	
 	FollowerState followerState_;
 	
 	Process process_;
 	
+	// the rank of the follower, known once its HELLO has been read
+	int rank_ = -2;
+	
+	// reused for every command read from the follower
+	private final Command command_ = new Command();
+	
+	// encoded commands waiting to be written to the follower
+	private final LinkedBlockingQueue<byte[]> outgoing_ = new LinkedBlockingQueue<byte[]>();
+	
+	// drains outgoing_ to the socket
+	private final Thread writer_;
+	
 	// initialize input/output streams and assign client and ID
-	public Connection(Socket s, FollowerState fs, Process p) 
+	public Connection(Socket s, FollowerState fs, Process p) throws IOException
 	{
+		this(s.getInputStream(), s.getOutputStream(), s.getInetAddress().toString(), fs, p);
 		socket_ = s;
-		try {
-			oos_ = new ObjectOutputStream(socket_.getOutputStream());
-			ois_ = new ObjectInputStream(socket_.getInputStream());
-		} catch (IOException e) { 
-			e.printStackTrace();
-		}
+	}
+	
+	public Connection(InputStream in, OutputStream out, String name, FollowerState fs, Process p)
+	{
+		dos_ = new DataOutputStream(new BufferedOutputStream(out));
+		dis_ = new DataInputStream(new BufferedInputStream(in));
 	
 		followerState_ = fs;
 		
 		process_ = p;
 		
+		writer_ = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "mpe-writer-" + name);
+		writer_.setDaemon(true);
+	}
+	
+	/**
+	 * Reads the HELLO the follower sends first and admits or refuses it, see Handshake. Called before start().
+	 * @throws IOException if the follower was refused or did not introduce itself in time.
+	 */
+	public void handshake() throws IOException
+	{
+		if(socket_ != null)
+			socket_.setSoTimeout(Handshake.TIMEOUT);
+		rank_ = Handshake.accept(dis_, dos_, process_);
+		if(socket_ != null)
+			socket_.setSoTimeout(0);
+	}
+	
+	public void start()
+	{
+		writer_.start();
+		super.start();
 	}
 	
 	public void run()
@@ -43,29 +86,48 @@ public class Connection extends Thread {
 		// read input from follower
 		while(true)
 		{
-			Command command = null;
 			try {
-				command = (Command) ois_.readObject();
+				command_.read(dis_);
 			} catch (IOException e) {
 				System.out.println("Client disconnected!");
 				//e.printStackTrace();
 				System.exit(-1);
-			} catch (ClassNotFoundException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
 			}
 			
-			if(command == null)
-				break; // the leader hung up!
-			readCommand(command);
+			readCommand(command_);
 		}
 	}
 	
 	public void sendCommand(Command command)
+	{
+		send(command.encode());
+	}
+	
+	/**
+	 * Queues an already encoded command for writing. The array is shared between connections and must not
+	 * be modified afterwards.
+	 */
+	public void send(byte[] encoded)
+	{
+		outgoing_.add(encoded);
+	}
+	
+	// writes queued commands, flushing only once the queue has been drained
+	private void writeLoop()
 	{
 		try {
-			oos_.reset();
-			oos_.writeObject(command);
+			while(true)
+			{
+				byte[] encoded = outgoing_.take();
+				dos_.write(encoded);
+				
+				while((encoded = outgoing_.poll()) != null)
+					dos_.write(encoded);
+				
+				dos_.flush();
+			}
+		} catch (InterruptedException e) {
+			// shutting down
 		} catch (IOException e) {
 			System.out.println("Unable to write to client!");
 			e.printStackTrace();
@@ -75,9 +137,9 @@ public class Connection extends Thread {
 	private void readCommand(Command command)
 	{	
 		// the client has rendered a frame and is ready for next
-		if(command.command.equals("ef"))
+		if(command.opcode == Command.END_FRAME)
 		{
-			if(process_.getDebug()) process_.print("Received EF.");
+			if(process_.getDebug()) process_.print("Received EF for frame " + command.frame);
 			
 			/*
 			long end = System.currentTimeMillis();
@@ -85,17 +147,21 @@ public class Connection extends Thread {
 			if(elapsed > 20)
 				process_.print("Remote end: " + socket_.getInetAddress() + " took " + elapsed + "ms to respond.");
 			*/
-			followerState_.ready();
-			
-			try {
-				process_.barrier_.await();
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (BrokenBarrierException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			process_.endFrameReceived(command.frame, command.payload, 0, command.payloadLength);
+		}
+		
+		// the follower measures its clock offset
+		else if(command.opcode == Command.PING)
+		{
+			send(process_.pong(command.frame, Command.readLong(command.payload, 0)));
+		}
+		
+		// the follower lost a multicast frame event
+		else if(command.opcode == Command.REPAIR)
+		{
+			byte[] encoded = process_.repairFrame(command.frame);
+			if(encoded != null)
+				send(encoded);
 		}
 	}
 
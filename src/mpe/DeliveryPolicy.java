@@ -0,0 +1,14 @@
+package mpe;
+
+/**
+ * How messages on a named channel are delivered when several are sent before a follower reads them.
+ *
+ */
+public enum DeliveryPolicy {
+	
+	// only the newest message is kept, older unread ones are replaced
+	LATEST,
+	
+	// every message is kept and read in the order it was sent
+	QUEUE
+}
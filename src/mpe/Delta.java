@@ -0,0 +1,110 @@
+package mpe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary diff between two encodings of a channel's value. A diff lists the runs of bytes that changed:
+ * [int length][short runs] then per run [int offset][int count][bytes], where length is the size of the new
+ * encoding.
+ *
+ */
+class Delta {
+	
+	// unchanged gaps shorter than this are sent as part of the surrounding run, a run header costs 8 bytes
+	private static final int MERGE_GAP = 8;
+	
+	/**
+	 * Computes the diff that turns base into target.
+	 * @return The diff, or null if it would not be smaller than target.
+	 */
+	static byte[] diff(byte[] base, byte[] target) throws IOException
+	{
+		ByteArrayOutputStream runs = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(runs);
+		int count = 0;
+		
+		int common = Math.min(base.length, target.length);
+		int i = 0;
+		while(i < common)
+		{
+			if(base[i] == target[i])
+			{
+				i++;
+				continue;
+			}
+			
+			// extend the run until MERGE_GAP equal bytes in a row, or the end of the shared prefix
+			int start = i;
+			int end = i + 1;
+			int equal = 0;
+			for(i = end; i < common && equal < MERGE_GAP; i++)
+			{
+				if(base[i] == target[i])
+					equal++;
+				else
+				{
+					equal = 0;
+					end = i + 1;
+				}
+			}
+			
+			// a run touching the end of the shared prefix also takes the bytes past it
+			if(end == common)
+				end = target.length;
+			i = end;
+			
+			out.writeInt(start);
+			out.writeInt(end - start);
+			out.write(target, start, end - start);
+			count++;
+			
+			if(out.size() + 6 >= target.length)
+				return null;
+		}
+		
+		// bytes appended after an unchanged prefix
+		if(i == common && target.length > common)
+		{
+			out.writeInt(common);
+			out.writeInt(target.length - common);
+			out.write(target, common, target.length - common);
+			count++;
+		}
+		out.flush();
+		
+		if(runs.size() + 6 >= target.length || count > 0xFFFF)
+			return null;
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(runs.size() + 6);
+		DataOutputStream diff = new DataOutputStream(bytes);
+		diff.writeInt(target.length);
+		diff.writeShort(count);
+		runs.writeTo(diff);
+		diff.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Applies a diff read from the stream to base.
+	 * @return The new encoding.
+	 */
+	static byte[] patch(byte[] base, DataInputStream in) throws IOException
+	{
+		byte[] target = new byte[in.readInt()];
+		System.arraycopy(base, 0, target, 0, Math.min(base.length, target.length));
+		
+		int count = in.readUnsignedShort();
+		for(int i = 0; i < count; i++)
+		{
+			int offset = in.readInt();
+			int length = in.readInt();
+			if(offset < 0 || length < 0 || offset + length > target.length)
+				throw new IOException("Malformed delta run: " + offset + "+" + length);
+			in.readFully(target, offset, length);
+		}
+		return target;
+	}
+}
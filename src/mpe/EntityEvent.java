@@ -0,0 +1,41 @@
+package mpe;
+
+/**
+ * A change to an entity of the leader's EntityRegistry, as seen by one follower.
+ *
+ */
+public class EntityEvent {
+	
+	// kinds
+	// the entity now overlaps this follower's tiles, state holds its full state
+	public static final int ENTER  = 0;
+	
+	// the entity moved or changed while overlapping this follower's tiles, state is null if it did not change
+	public static final int UPDATE = 1;
+	
+	// the entity no longer overlaps this follower's tiles, or was removed
+	public static final int LEAVE  = 2;
+	
+	public int kind;
+	public int id;
+	
+	// the bounds in master space
+	public float x, y, w, h;
+	
+	public Object state;
+	
+	public EntityEvent()
+	{
+	}
+	
+	public EntityEvent(int kind, int id, float x, float y, float w, float h, Object state)
+	{
+		this.kind = kind;
+		this.id = id;
+		this.x = x;
+		this.y = y;
+		this.w = w;
+		this.h = h;
+		this.state = state;
+	}
+}
@@ -0,0 +1,14 @@
+package mpe;
+
+/**
+ * Receives the entity events of a follower, on the sketch thread before the frame they belong to is drawn.
+ *
+ */
+public interface EntityListener {
+	
+	public void entityEntered(EntityEvent e);
+	
+	public void entityUpdated(EntityEvent e);
+	
+	public void entityLeft(EntityEvent e);
+}
@@ -0,0 +1,200 @@
+package mpe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Leader-side registry of entities with master-space bounds and a state object. Once per frame the entities that
+ * moved or changed are looked up in the TileGrid, and every follower whose tiles they overlap receives an update,
+ * followers they start or stop overlapping receive an enter or leave event. Followers whose tiles an entity never
+ * touches receive nothing about it.
+ *
+ * The events of a frame go to each follower as one EntityEvent[] on ENTITY_CHANNEL, through the targeted path.
+ *
+ */
+public class EntityRegistry {
+	
+	// the channel entity events are delivered on
+	public static final String CHANNEL = "mpe.entities";
+	
+	static class Entry {
+		int id;
+		float x, y, w, h;
+		Object state;
+		
+		// the rank indices the entity was last sent to, ascending
+		int[] ranks = new int[0];
+		
+		boolean moved;
+		boolean changed;
+		boolean removed;
+		
+		// already in dirty_
+		boolean dirty;
+	}
+	
+	private final TileGrid grid_;
+	
+	private final HashMap<Integer, Entry> entities_ = new HashMap<Integer, Entry>();
+	
+	// entities changed since the last flush
+	private final ArrayList<Entry> dirty_ = new ArrayList<Entry>();
+	
+	// reused by flush()
+	private final int[] found_;
+	private final ArrayList<ArrayList<EntityEvent>> events_ = new ArrayList<ArrayList<EntityEvent>>();
+	
+	public EntityRegistry(TileGrid grid)
+	{
+		grid_ = grid;
+		found_ = new int[grid.getRanks().length];
+		for(int i = 0; i < found_.length; i++)
+			events_.add(new ArrayList<EntityEvent>());
+	}
+	
+	/**
+	 * Adds an entity, or replaces the bounds and state of an existing one.
+	 */
+	public synchronized void put(int id, float x, float y, float w, float h, Object state)
+	{
+		Entry entry = entities_.get(id);
+		if(entry == null || entry.removed)
+		{
+			if(entry == null)
+			{
+				entry = new Entry();
+				entry.id = id;
+				entities_.put(id, entry);
+			}
+			entry.removed = false;
+		}
+		entry.x = x;
+		entry.y = y;
+		entry.w = w;
+		entry.h = h;
+		entry.state = state;
+		entry.moved = true;
+		entry.changed = true;
+		markDirty(entry);
+	}
+	
+	/**
+	 * Moves an entity, its state is not resent.
+	 */
+	public synchronized void move(int id, float x, float y, float w, float h)
+	{
+		Entry entry = entities_.get(id);
+		if(entry == null || entry.removed)
+			return;
+		entry.x = x;
+		entry.y = y;
+		entry.w = w;
+		entry.h = h;
+		entry.moved = true;
+		markDirty(entry);
+	}
+	
+	/**
+	 * Replaces the state of an entity without moving it.
+	 */
+	public synchronized void setState(int id, Object state)
+	{
+		Entry entry = entities_.get(id);
+		if(entry == null || entry.removed)
+			return;
+		entry.state = state;
+		entry.changed = true;
+		markDirty(entry);
+	}
+	
+	/**
+	 * Removes an entity, the followers showing it receive a leave event.
+	 */
+	public synchronized void remove(int id)
+	{
+		Entry entry = entities_.get(id);
+		if(entry == null)
+			return;
+		entry.removed = true;
+		markDirty(entry);
+	}
+	
+	public synchronized int size()
+	{
+		return entities_.size();
+	}
+	
+	private void markDirty(Entry entry)
+	{
+		if(!entry.dirty)
+		{
+			entry.dirty = true;
+			dirty_.add(entry);
+		}
+	}
+	
+	/**
+	 * Routes the changes since the last flush and sends them with the next frame. Called by the leader before
+	 * each frame event.
+	 */
+	synchronized void flush(Process process)
+	{
+		if(dirty_.isEmpty())
+			return;
+		
+		int[] ranks = grid_.getRanks();
+		for(int i = 0; i < dirty_.size(); i++)
+		{
+			Entry entry = dirty_.get(i);
+			int[] old = entry.ranks;
+			int[] now;
+			if(entry.removed)
+				now = new int[0];
+			else if(entry.moved)
+			{
+				int count = grid_.query(entry.x, entry.y, entry.w, entry.h, found_);
+				boolean same = old.length == count;
+				for(int j = 0; j < count && same; j++)
+					same = old[j] == found_[j];
+				now = same ? old : Arrays.copyOf(found_, count);
+			}
+			else
+				now = old;
+			
+			// both lists are ascending, walk them together
+			int a = 0, b = 0;
+			while(a < old.length || b < now.length)
+			{
+				if(b == now.length || (a < old.length && old[a] < now[b]))
+					events_.get(old[a++]).add(new EntityEvent(EntityEvent.LEAVE, entry.id, entry.x, entry.y, entry.w, entry.h, null));
+				else if(a == old.length || now[b] < old[a])
+					events_.get(now[b++]).add(new EntityEvent(EntityEvent.ENTER, entry.id, entry.x, entry.y, entry.w, entry.h, entry.state));
+				else
+				{
+					events_.get(now[b]).add(new EntityEvent(EntityEvent.UPDATE, entry.id, entry.x, entry.y, entry.w, entry.h,
+							entry.changed ? entry.state : null));
+					a++;
+					b++;
+				}
+			}
+			
+			entry.ranks = now;
+			entry.moved = false;
+			entry.changed = false;
+			entry.dirty = false;
+			if(entry.removed)
+				entities_.remove(entry.id);
+		}
+		dirty_.clear();
+		
+		for(int r = 0; r < ranks.length; r++)
+		{
+			ArrayList<EntityEvent> events = events_.get(r);
+			if(events.isEmpty())
+				continue;
+			process.send(ranks[r], CHANNEL, events.toArray(new EntityEvent[events.size()]));
+			events.clear();
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package mpe;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Frame;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A resident follower that stays running on a host between sessions, so a new session does not pay for JVM
+ * startup, class loading and warm-up. AutoLauncher sends it a LAUNCH request for each rank on the host. The agent
+ * loads the staged sketch jars into a fresh class loader, binds that copy of the library to the rank and starts
+ * the sketch. The session is unloaded when the leader closes the request connection or the sketch exits.
+ *
+ * What carries over between sessions is what lives in the agent's own class loader: the JVM, the JDK classes
+ * already loaded and compiled, and a cache the agent hands to every session, see Process.getAgentCache(). The
+ * library and Processing are loaded again with each sketch, so the connections to the leader are not pooled,
+ * each session opens its own.
+ *
+ * Start one per host with: java -cp library/mpe.jar mpe.FollowerAgent [port [cachePath [bindAddress]]]
+ *
+ * Requests are not authenticated: anyone who can reach the port can run any build staged in the cache folder,
+ * as the agent's user, with the sketch folder they name as working directory. Bind the agent to the interface of
+ * the display network, and keep the cache folder writable only by the user that stages builds.
+ *
+ * The agent keeps a sketch's System.exit() from ending the agent with a security manager. From Java 18 on the JVM
+ * only allows one when started with -Djava.security.manager=allow, which must then be added to the command above.
+ *
+ * LAUNCH request: [short version][UTF artifact folder][UTF sketch name][UTF sketch folder][int rank]
+ * Answer: [UTF error], empty if the sketch was started.
+ *
+ */
+public class FollowerAgent {
+
+	public static final int DEFAULT_PORT = 9005;
+
+	// the default cachePath of AutoLauncher
+	public static final String DEFAULT_CACHE_PATH = "/tmp/mpe-cache";
+
+	// the version of the LAUNCH request, independent of the transport handshake
+	public static final short LAUNCH_VERSION = 1;
+
+	/**
+	 * One sketch running for one rank.
+	 */
+	class Session {
+		int rank;
+		Socket control;
+		URLClassLoader loader;
+
+		// every thread the sketch starts is created in this group
+		ThreadGroup group;
+
+		// runs the sketch's main(), started once the leader has been answered
+		Thread main;
+
+		volatile boolean unloaded;
+
+		/**
+		 * Closes the sketch's windows, interrupts its threads and releases its class loader.
+		 */
+		synchronized void unload()
+		{
+			if(unloaded)
+				return;
+			unloaded = true;
+
+			for(Frame frame : Frame.getFrames())
+			{
+				if(owns(frame))
+					frame.dispose();
+			}
+			group.interrupt();
+
+			try {
+				loader.close();
+				control.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			sessions_.remove(this);
+			System.out.println("FollowerAgent: unloaded rank " + rank);
+		}
+
+		// true if a component of the window was loaded by this session
+		private boolean owns(Container container)
+		{
+			for(Component c : container.getComponents())
+			{
+				if(c.getClass().getClassLoader() == loader)
+					return true;
+				if(c instanceof Container && owns((Container) c))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	int port_;
+
+	// the address to listen on, null for every interface
+	String bindAddress_;
+
+	// the only folder the agent loads jars from, AutoLauncher's cachePath
+	File cache_;
+
+	// the sessions currently running
+	Vector<Session> sessions_;
+	
+	// outlives the sessions, only holds JDK types so that no session's classes are kept loaded
+	ConcurrentHashMap<String, Object> sessionCache_;
+
+	/**
+	 * @param port The port to listen on.
+	 * @param cachePath The folder AutoLauncher stages builds to, requests for jars anywhere else are refused.
+	 * @param bindAddress The address of the interface to listen on, or null for every interface.
+	 */
+	public FollowerAgent(int port, String cachePath, String bindAddress) throws IOException
+	{
+		port_ = port;
+		cache_ = new File(cachePath).getCanonicalFile();
+		bindAddress_ = bindAddress;
+		sessions_ = new Vector<Session>();
+		sessionCache_ = new ConcurrentHashMap<String, Object>();
+	}
+
+	/**
+	 * Accepts LAUNCH requests until the agent is killed.
+	 */
+	@SuppressWarnings("removal")
+	public void serve() throws IOException
+	{
+		// a sketch calling System.exit() ends its session instead of the agent
+		try {
+			System.setSecurityManager(new SecurityManager() {
+				public void checkPermission(Permission perm)
+				{
+				}
+
+				public void checkExit(int status)
+				{
+					Session session = current();
+					if(session != null)
+					{
+						session.unload();
+						throw new SecurityException("Session for rank " + session.rank + " exited");
+					}
+				}
+			});
+		} catch (UnsupportedOperationException e) {
+			System.out.println("FollowerAgent: this JVM does not allow a security manager, start the agent with "
+					+ "-Djava.security.manager=allow. Until then a sketch calling System.exit() stops the agent.");
+		}
+
+		ServerSocket listener = new ServerSocket(port_, 50, bindAddress_ == null ? null : InetAddress.getByName(bindAddress_));
+		System.out.println("FollowerAgent: listening on " + listener.getLocalSocketAddress() + ", loading builds from " + cache_);
+		while(true)
+		{
+			final Socket socket = listener.accept();
+			socket.setTcpNoDelay(true);
+			new Thread(new Runnable() {
+				public void run() {
+					handle(socket);
+				}
+			}, "mpe-agent-session").start();
+		}
+	}
+
+	// the session the calling thread belongs to, or null
+	private Session current()
+	{
+		ThreadGroup group = Thread.currentThread().getThreadGroup();
+		for(; group != null; group = group.getParent())
+		{
+			for(int i = 0; i < sessions_.size(); i++)
+			{
+				Session session = sessions_.elementAt(i);
+				if(session.group == group)
+					return session;
+			}
+		}
+		return null;
+	}
+
+	// starts a session and waits for the leader to close the connection
+	private void handle(Socket socket)
+	{
+		Session session = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			String error = null;
+			try {
+				int version = in.readShort();
+				String artifact = in.readUTF();
+				String sketchName = in.readUTF();
+				String sketchPath = in.readUTF();
+				int rank = in.readInt();
+
+				if(version != LAUNCH_VERSION)
+					error = "launch protocol version " + version + ", expected " + LAUNCH_VERSION;
+				else
+					session = launch(socket, artifact, sketchName, sketchPath, rank);
+			} catch (Exception e) {
+				error = e.toString();
+			}
+
+			out.writeUTF(error == null ? "" : error);
+			out.flush();
+			if(session == null)
+			{
+				System.out.println("FollowerAgent: unable to launch: " + error);
+				socket.close();
+				return;
+			}
+			session.main.start();
+
+			// the leader keeps the connection open for the whole session
+			while(in.read() >= 0)
+				;
+		} catch (IOException e) {
+			// the leader is gone
+		}
+
+		if(session != null)
+			session.unload();
+	}
+
+	/**
+	 * Loads the sketch in the artifact folder into a fresh class loader and binds it to the rank.
+	 */
+	Session launch(Socket control, String artifact, final String sketchName, final String sketchPath, int rank) throws Exception
+	{
+		// only run what AutoLauncher staged, not any folder a request names
+		File folder = new File(artifact).getCanonicalFile();
+		if(!folder.getPath().startsWith(cache_.getPath() + File.separator))
+			throw new IOException(artifact + " is not in the cache folder " + cache_);
+
+		File[] jars = folder.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".jar");
+			}
+		});
+		if(jars == null || jars.length == 0)
+			throw new IOException("No jars in " + artifact);
+		Arrays.sort(jars);
+
+		URL[] urls = new URL[jars.length];
+		for(int i = 0; i < jars.length; i++)
+			urls[i] = jars[i].toURI().toURL();
+
+		// skip the agent's own class path, so the session gets its own copy of the library and of Processing
+		final Session session = new Session();
+		session.rank = rank;
+		session.control = control;
+		session.loader = new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+		session.group = new ThreadGroup("mpe-rank" + rank);
+
+		Class<?> configuration = session.loader.loadClass("mpe.Configuration");
+		configuration.getMethod("bindRank", int.class).invoke(null, rank);
+		configuration.getMethod("bindAgentCache", Map.class).invoke(null, sessionCache_);
+		final Class<?> applet = session.loader.loadClass("processing.core.PApplet");
+		sessions_.add(session);
+
+		session.main = new Thread(session.group, new Runnable() {
+			public void run() {
+				try {
+					String[] args = { "--sketch-path=" + sketchPath, sketchName };
+					applet.getMethod("main", String[].class).invoke(null, (Object) args);
+				} catch (InvocationTargetException e) {
+					// the sketch exited while starting, checkExit() already unloaded it
+					if(!session.unloaded)
+					{
+						System.out.println("FollowerAgent: unable to start " + sketchName);
+						e.getCause().printStackTrace();
+						session.unload();
+					}
+				} catch (Exception e) {
+					System.out.println("FollowerAgent: unable to start " + sketchName);
+					e.printStackTrace();
+					session.unload();
+				}
+			}
+		}, "mpe-rank" + rank + "-main");
+		session.main.setContextClassLoader(session.loader);
+
+		System.out.println("FollowerAgent: starting " + sketchName + " as rank " + rank);
+		return session;
+	}
+
+	/**
+	 * Asks the agent on a host to start a rank. The returned connection must stay open for the whole session,
+	 * closing it unloads the sketch.
+	 * @throws IOException if the agent is not running or refused the request.
+	 */
+	public static Socket request(String host, int port, String artifact, String sketchName, String sketchPath, int rank) throws IOException
+	{
+		Socket socket = new Socket(host, port);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeShort(LAUNCH_VERSION);
+			out.writeUTF(artifact);
+			out.writeUTF(sketchName);
+			out.writeUTF(sketchPath);
+			out.writeInt(rank);
+			out.flush();
+
+			String error = new DataInputStream(socket.getInputStream()).readUTF();
+			if(error.length() > 0)
+				throw new IOException(error);
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Arguments: [port [cachePath [bindAddress]]], by default 9005, /tmp/mpe-cache and every interface.
+	 */
+	public static void main(String[] args)
+	{
+		int port = DEFAULT_PORT;
+		if(args.length > 0)
+			port = Integer.parseInt(args[0]);
+		String cachePath = args.length > 1 ? args[1] : DEFAULT_CACHE_PATH;
+		String bindAddress = args.length > 2 ? args[2] : null;
+
+		try {
+			new FollowerAgent(port, cachePath, bindAddress).serve();
+		} catch (IOException e) {
+			System.out.println("FollowerAgent: unable to listen on port " + port);
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
@@ -1,7 +1,8 @@
 package mpe;
 
 /**
- * Used as a shared object to determine whether all connected processes are ready to render.
+ * Used as a shared object to determine whether all follower processes are connected. Per-frame readiness is
+ * tracked by the FrameBarrier.
  * @author Brandt Westing TACC
  *
  */
@@ -9,9 +10,6 @@ public class FollowerState {
 
 	private int numFollowers_;
 	
-	// the number of processes not yet ready to render
-	private int numReady_;
-	
 	// the number of processes connected
 	private int numConnected_;
 	
@@ -24,9 +22,6 @@ public class FollowerState {
 		
 		// no followers connected initially
 		numConnected_ = 0;
-		
-		numReady_ = 0;
-		
 	}
 	
 	public synchronized boolean allConnected()
@@ -39,26 +34,6 @@ public class FollowerState {
 		numConnected_++;
 	}
 	
-	public synchronized void ready()
-	{
-		numReady_++;
-	}
-	
-	public synchronized boolean allReady()
-	{
-		return numReady_ == numFollowers_;
-	}
-	
-	public synchronized void setAllReady()
-	{
-		numReady_ = numFollowers_;
-	}
-	
-	public synchronized void setNoneReady()
-	{
-		numReady_ = 0;
-	}
-	
 	public synchronized boolean notified()
 	{
 		return notified_;
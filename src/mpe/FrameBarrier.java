@@ -0,0 +1,117 @@
+package mpe;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Frame barrier between the leader and its followers. Every end-of-frame message counts down its frame, and
+ * the last arrival publishes the frame number as completed and wakes the leader directly. Arriving threads
+ * never block, and no reset is needed between frames.
+ * 
+ * The barrier keeps one counter per frame in flight, so with a pipeline depth above one, followers may
+ * acknowledge newer frames while slower followers are still drawing older ones.
+ *
+ */
+public class FrameBarrier {
+	
+	// the number of end-of-frame messages per frame
+	private final int parties_;
+	
+	// arrivals still missing, indexed by frame modulo the pipeline depth
+	private final AtomicIntegerArray remaining_;
+	
+	// the last frame every party has arrived at
+	private volatile int completed_ = -1;
+	
+	// the thread waiting in await(), if any
+	private volatile Thread waiter_;
+	
+	private final WaitStrategy wait_;
+	
+	public FrameBarrier(int parties, WaitStrategy wait)
+	{
+		this(parties, 1, wait);
+	}
+	
+	/**
+	 * @param parties The number of end-of-frame messages per frame.
+	 * @param depth The maximum number of frames in flight at once.
+	 * @param wait How the waiting thread waits.
+	 */
+	public FrameBarrier(int parties, int depth, WaitStrategy wait)
+	{
+		parties_ = parties;
+		remaining_ = new AtomicIntegerArray(depth);
+		for(int i = 0; i < depth; i++)
+			remaining_.set(i, parties);
+		wait_ = wait;
+	}
+	
+	/**
+	 * Records an end-of-frame message.
+	 * 
+	 * @param frame The frame that was drawn.
+	 * @return True if this was the last arrival for the frame.
+	 */
+	public boolean arrive(int frame)
+	{
+		if(!countDown(frame))
+			return false;
+		complete(frame);
+		return true;
+	}
+	
+	/**
+	 * Records an end-of-frame message without publishing the frame. The caller that gets true must call
+	 * complete() once it has handled the frame, everything it wrote before is then visible to the waiter.
+	 * 
+	 * @param frame The frame that was drawn.
+	 * @return True if this was the last arrival for the frame.
+	 */
+	public boolean countDown(int frame)
+	{
+		int slot = frame % remaining_.length();
+		if(remaining_.decrementAndGet(slot) != 0)
+			return false;
+		
+		// re-arm before publishing, the frame reusing this slot cannot start before the waiter sees completed_.
+		// frames complete in order, each party acknowledges its frames in sequence
+		remaining_.set(slot, parties_);
+		return true;
+	}
+	
+	/**
+	 * Publishes the frame as completed and wakes the waiter.
+	 */
+	public void complete(int frame)
+	{
+		completed_ = frame;
+		wait_.wake(waiter_);
+	}
+	
+	/**
+	 * Waits until every party has arrived at the frame.
+	 * 
+	 * @param frame The frame to wait for.
+	 */
+	public void await(int frame)
+	{
+		// a leader without followers never waits
+		if(parties_ == 0)
+			return;
+		
+		waiter_ = Thread.currentThread();
+		
+		int iteration = 0;
+		long start = System.nanoTime();
+		while(completed_ < frame)
+			wait_.idle(iteration++, start);
+	}
+	
+	/**
+	 * Gets the last frame every party has arrived at.
+	 */
+	public int completed()
+	{
+		return completed_;
+	}
+}
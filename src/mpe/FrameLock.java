@@ -1,37 +1,65 @@
 package mpe;
 
-import java.util.concurrent.Semaphore;
-
 /**
- * Used as a wrapper for a binary semaphore to signal when a frame can be drawn.
+ * Signals when a frame can be drawn. Frames are sequence-numbered: the network thread releases a frame number
+ * and the render thread draws frames strictly one after another, so releasing the same frame twice can never
+ * let a process run ahead.
  * @author Brandt Westing TACC
  *
  */
 public class FrameLock {
 	
-	Semaphore frameLock_;
+	// the highest frame that may be drawn, frame 0 is always free
+	private volatile int released_ = 0;
+	
+	// the next frame the render thread will draw
+	private int next_ = 0;
+	
+	// the render thread, once it waited
+	private volatile Thread waiter_;
+	
+	private final WaitStrategy wait_;
 	
 	public FrameLock()
 	{
-		frameLock_ = new Semaphore(1);
+		this(WaitStrategy.PARK);
+	}
+	
+	public FrameLock(WaitStrategy wait)
+	{
+		wait_ = wait;
 	}
 	
 	/**
+	 * Waits until the next frame has been released.
 	 * 
+	 * @return The number of the frame that may now be drawn.
 	 */
-	public void acquire()
+	public int acquire()
 	{
-		try {
-			frameLock_.acquire();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if(released_ < next_)
+		{
+			waiter_ = Thread.currentThread();
+			
+			int iteration = 0;
+			long start = System.nanoTime();
+			while(released_ < next_)
+				wait_.idle(iteration++, start);
 		}
+		return next_++;
 	}
 	
-	public void release()
+	/**
+	 * Releases every frame up to and including the given frame. Called from a single thread.
+	 * 
+	 * @param frame The frame that may be drawn.
+	 */
+	public void release(int frame)
 	{
-		frameLock_.release();
+		if(frame > released_)
+			released_ = frame;
+		
+		wait_.wake(waiter_);
 	}
 
 }
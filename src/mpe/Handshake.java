@@ -0,0 +1,95 @@
+package mpe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The exchange that opens every connection between a child and its parent. The child sends HELLO with its rank,
+ * the protocol version and the viewport it computed from its configuration, the parent checks them against its
+ * own configuration and answers WELCOME, which either admits the child or carries the reason it was refused.
+ *
+ * HELLO payload: [short version][int x][int y][int width][int height], the frame field holds the rank.
+ * WELCOME payload: [UTF reason], the frame field is 0 if the child was admitted.
+ *
+ */
+public class Handshake {
+	
+	// bumped whenever the wire format changes, parent and child must agree
+	public static final short PROTOCOL_VERSION = 1;
+	
+	// how long a parent waits for the HELLO of a new connection, in milliseconds
+	public static final int TIMEOUT = 10000;
+	
+	/**
+	 * Introduces a child to its parent and waits to be admitted.
+	 * @throws IOException if the parent refused us or hung up.
+	 */
+	public static void greet(DataInputStream in, DataOutputStream out, Configuration config) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeShort(PROTOCOL_VERSION);
+		payload.writeInt(config.getOffsets()[0]);
+		payload.writeInt(config.getOffsets()[1]);
+		payload.writeInt(config.getLocalDim()[0]);
+		payload.writeInt(config.getLocalDim()[1]);
+		payload.flush();
+		
+		Command hello = new Command(Command.HELLO, config.getRank());
+		hello.setPayload(bytes.toByteArray());
+		hello.write(out);
+		out.flush();
+		
+		Command welcome = new Command();
+		welcome.read(in);
+		if(welcome.opcode != Command.WELCOME)
+			throw new IOException("Expected WELCOME, received opcode " + welcome.opcode);
+		if(welcome.frame != 0)
+			throw new IOException("Refused by parent: " + reason(welcome));
+	}
+	
+	/**
+	 * Reads a child's HELLO and admits or refuses it.
+	 * @return The rank of the admitted child.
+	 * @throws IOException if the child was refused or hung up.
+	 */
+	public static int accept(DataInputStream in, DataOutputStream out, Process process) throws IOException
+	{
+		Command hello = new Command();
+		hello.read(in);
+		
+		String refusal;
+		if(hello.opcode != Command.HELLO)
+			refusal = "expected HELLO, received opcode " + hello.opcode;
+		else if(hello.payloadLength < 18)
+			refusal = "HELLO from protocol version 0";
+		else
+		{
+			DataInputStream payload = new DataInputStream(new ByteArrayInputStream(hello.payload, 0, hello.payloadLength));
+			int version = payload.readShort();
+			int[] viewport = { payload.readInt(), payload.readInt(), payload.readInt(), payload.readInt() };
+			refusal = process.admit(hello.frame, version, viewport);
+		}
+		
+		Command welcome = new Command(Command.WELCOME, refusal == null ? 0 : 1);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeUTF(refusal == null ? "" : refusal);
+		payload.flush();
+		welcome.setPayload(bytes.toByteArray());
+		welcome.write(out);
+		out.flush();
+		
+		if(refusal != null)
+			throw new IOException("Refused rank " + hello.frame + ": " + refusal);
+		return hello.frame;
+	}
+	
+	private static String reason(Command welcome) throws IOException
+	{
+		return new DataInputStream(new ByteArrayInputStream(welcome.payload, 0, welcome.payloadLength)).readUTF();
+	}
+}
@@ -0,0 +1,65 @@
+package mpe;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Holds the messages a follower has received, per named channel, until the sketch reads them. Only used from
+ * the sketch thread.
+ *
+ */
+public class Inbox {
+	
+	// the unread messages of one channel
+	static class Slot {
+		ArrayDeque<Object> queue = new ArrayDeque<Object>();
+	}
+	
+	private final HashMap<String, Slot> slots_ = new HashMap<String, Slot>();
+	
+	/**
+	 * Stores a received message according to its delivery policy.
+	 */
+	public void deliver(Message message)
+	{
+		Slot slot = slots_.get(message.channel);
+		if(slot == null)
+		{
+			slot = new Slot();
+			slots_.put(message.channel, slot);
+		}
+		
+		if(message.policy == DeliveryPolicy.LATEST)
+			slot.queue.clear();
+		slot.queue.addLast(message.value);
+	}
+	
+	/**
+	 * Determines if the channel has an unread message.
+	 */
+	public boolean received(String channel)
+	{
+		Slot slot = slots_.get(channel);
+		return slot != null && !slot.queue.isEmpty();
+	}
+	
+	/**
+	 * Takes the next unread message of the channel, or null if there is none.
+	 */
+	public Object poll(String channel)
+	{
+		Slot slot = slots_.get(channel);
+		if(slot == null)
+			return null;
+		return slot.queue.pollFirst();
+	}
+	
+	/**
+	 * Gets the number of unread messages on the channel.
+	 */
+	public int size(String channel)
+	{
+		Slot slot = slots_.get(channel);
+		return slot == null ? 0 : slot.queue.size();
+	}
+}
@@ -0,0 +1,93 @@
+package mpe;
+
+import processing.core.PMatrix3D;
+import processing.core.PVector;
+
+/**
+ * Keeps the last two states received on an interpolated channel with the leader time of their frames, and blends
+ * between them at the current frame time. Rendering one update interval behind the newest state lets followers
+ * draw every frame smoothly while the leader sends updates at a lower tick rate. Only used from the sketch thread.
+ *
+ */
+public class Interpolator {
+	
+	/**
+	 * Blends Float, Double, float[], double[], PVector and PMatrix3D element-wise.
+	 */
+	public static final Lerp NUMERIC = new Lerp() {
+		public Object lerp(Object a, Object b, float t)
+		{
+			if(a instanceof Float)
+				return (Float) a + ((Float) b - (Float) a) * t;
+			if(a instanceof Double)
+				return (Double) a + ((Double) b - (Double) a) * t;
+			if(a instanceof float[])
+			{
+				float[] x = (float[]) a, y = (float[]) b;
+				float[] r = new float[x.length];
+				for(int i = 0; i < r.length; i++)
+					r[i] = x[i] + (y[i] - x[i]) * t;
+				return r;
+			}
+			if(a instanceof double[])
+			{
+				double[] x = (double[]) a, y = (double[]) b;
+				double[] r = new double[x.length];
+				for(int i = 0; i < r.length; i++)
+					r[i] = x[i] + (y[i] - x[i]) * t;
+				return r;
+			}
+			if(a instanceof PVector)
+				return PVector.lerp((PVector) a, (PVector) b, t);
+			if(a instanceof PMatrix3D)
+			{
+				float[] x = ((PMatrix3D) a).get(null), y = ((PMatrix3D) b).get(null);
+				for(int i = 0; i < x.length; i++)
+					x[i] += (y[i] - x[i]) * t;
+				PMatrix3D r = new PMatrix3D();
+				r.set(x);
+				return r;
+			}
+			
+			// not numeric, switch over halfway
+			return t < 0.5f ? a : b;
+		}
+	};
+	
+	private final Lerp lerp_;
+	
+	// the previous and newest state, with the leader time of their frames in microseconds
+	private Object value0_, value1_;
+	private long time0_, time1_;
+	private int count_ = 0;
+	
+	public Interpolator(Lerp lerp)
+	{
+		lerp_ = lerp;
+	}
+	
+	/**
+	 * Adds the state received with the frame issued at the leader time.
+	 */
+	public void add(long time, Object value)
+	{
+		value0_ = value1_;
+		time0_ = time1_;
+		value1_ = value;
+		time1_ = time;
+		count_++;
+	}
+	
+	/**
+	 * Gets the state to draw at a leader time, blending from the previous to the newest state over the interval
+	 * between them, starting when the newest one arrived. Null before the first state.
+	 */
+	public Object sample(long time)
+	{
+		if(count_ < 2 || time1_ <= time0_)
+			return value1_;
+		
+		float t = (float) (time - time1_) / (time1_ - time0_);
+		return lerp_.lerp(value0_, value1_, Math.max(0, Math.min(1, t)));
+	}
+}
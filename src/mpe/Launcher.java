@@ -0,0 +1,29 @@
+package mpe;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * How AutoLauncher copies the built sketch to a host and starts a rank there.
+ *
+ */
+public interface Launcher {
+	
+	/**
+	 * Makes the jars available in the artifact folder of the host, unless an earlier launch already did.
+	 * @return False if the copy failed.
+	 */
+	public boolean stage(String hostName, File[] jars, String artifact);
+	
+	/**
+	 * Starts a command on the host. The output of the returned process has stderr merged into stdout.
+	 * 
+	 * @param hostName The host to run on.
+	 * @param env Variables added to the environment of the command.
+	 * @param directory The working directory of the command.
+	 * @param cpus CPUs the command should be pinned to in taskset's list format, or null for no affinity.
+	 * @param command The command and its arguments.
+	 */
+	public java.lang.Process start(String hostName, Map<String, String> env, String directory, String cpus, String[] command) throws IOException;
+}
@@ -0,0 +1,14 @@
+package mpe;
+
+/**
+ * Blends two states of an interpolated channel, see Process.setChannelInterpolated().
+ *
+ */
+public interface Lerp {
+	
+	/**
+	 * Blends two states without modifying them.
+	 * @param t 0 for a, 1 for b.
+	 */
+	public Object lerp(Object a, Object b, float t);
+}
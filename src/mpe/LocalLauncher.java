@@ -0,0 +1,98 @@
+package mpe;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Starts ranks on this host directly with a ProcessBuilder, without ssh. Used for hosts that name the leader's
+ * own machine, for example to bring up many ranks on one workstation for regression runs.
+ *
+ */
+public class LocalLauncher implements Launcher {
+	
+	// whether taskset is available to apply affinity hints
+	private static final boolean TASKSET = new File("/usr/bin/taskset").canExecute() || new File("/bin/taskset").canExecute();
+	
+	public synchronized boolean stage(String hostName, File[] jars, String artifact)
+	{
+		File folder = new File(artifact);
+		if(new File(folder, AutoLauncher.COMPLETE_MARKER).exists())
+			return true;
+		
+		// copy into a temporary folder first, so an interrupted copy is never mistaken for a complete one
+		try {
+			// whatever an interrupted copy left behind, including a stale marker, is removed first
+			File partial = new File(artifact + ".partial");
+			delete(partial);
+			partial.mkdirs();
+			for(File jar : jars)
+				Files.copy(jar.toPath(), new File(partial, jar.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			new File(partial, AutoLauncher.COMPLETE_MARKER).createNewFile();
+			
+			if(!partial.renameTo(folder))
+				throw new IOException("Unable to rename " + partial + " to " + folder);
+			return true;
+		} catch (IOException e) {
+			System.out.println("AutoLauncher:unable to copy the build to " + artifact);
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	// deletes a file or a folder with everything in it
+	private static void delete(File file) throws IOException
+	{
+		File[] children = file.listFiles();
+		if(children != null)
+		{
+			for(File child : children)
+				delete(child);
+		}
+		if(file.exists() && !file.delete())
+			throw new IOException("Unable to delete " + file);
+	}
+	
+	public java.lang.Process start(String hostName, Map<String, String> env, String directory, String cpus, String[] command) throws IOException
+	{
+		Vector<String> local = new Vector<String>();
+		if(cpus != null)
+		{
+			if(TASKSET)
+			{
+				local.add("taskset");
+				local.add("-c");
+				local.add(cpus);
+			}
+			else System.out.println("AutoLauncher:taskset not found, ignoring the affinity " + cpus);
+		}
+		for(String argument : command)
+			local.add(argument);
+		
+		ProcessBuilder pb = new ProcessBuilder(local);
+		pb.environment().putAll(env);
+		pb.directory(new File(directory));
+		pb.redirectErrorStream(true);
+		return pb.start();
+	}
+	
+	/**
+	 * Checks whether a host name from the configuration refers to this machine.
+	 */
+	public static boolean isLocal(String hostName)
+	{
+		if(hostName.equals("localhost") || hostName.startsWith("127."))
+			return true;
+		try {
+			InetAddress address = InetAddress.getByName(hostName);
+			return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
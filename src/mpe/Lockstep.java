@@ -0,0 +1,180 @@
+package mpe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a Simulation in lockstep. The leader only broadcasts the inputs of each frame, every rank steps its own
+ * copy with them and the frame's seed. Every few frames the followers gather a hash of their state to the leader
+ * with their end-of-frame message, and a rank whose hash differs from the leader's receives a snapshot. It
+ * restores the snapshot and replays the frames it stepped since, from its input history.
+ *
+ */
+public class Lockstep {
+	
+	// reserved channels
+	public static final String INPUT_CHANNEL = "mpe.lockstep.input";
+	public static final String HASH_CHANNEL = "mpe.lockstep.hash";
+	public static final String SNAPSHOT_CHANNEL = "mpe.lockstep.snapshot";
+	
+	// how many frames of inputs a follower keeps for replaying after a snapshot
+	static final int HISTORY = 256;
+	
+	private final Simulation simulation_;
+	
+	// frames between hash checks
+	private final int hashInterval_;
+	
+	// inputs waiting for the next frame (leader)
+	private final ArrayList<Object> inputs_ = new ArrayList<Object>();
+	
+	// our hashes of recent check frames (leader)
+	private final HashMap<Integer, Long> hashes_ = new HashMap<Integer, Long>();
+	
+	// rank, frame and hash of follower hashes for frames we have not stepped yet (leader)
+	private final ArrayList<long[]> unchecked_ = new ArrayList<long[]>();
+	
+	// inputs and seeds of recently stepped frames, indexed by frame modulo HISTORY (follower)
+	private final int[] historyFrames_ = new int[HISTORY];
+	private final Object[] historyInputs_ = new Object[HISTORY];
+	private final long[] historySeeds_ = new long[HISTORY];
+	
+	// the last frame stepped
+	private int stepped_ = 0;
+	
+	public Lockstep(Simulation simulation, int hashInterval)
+	{
+		simulation_ = simulation;
+		hashInterval_ = hashInterval;
+	}
+	
+	/**
+	 * Queues an input for the next frame (leader).
+	 */
+	public synchronized void input(Object input)
+	{
+		inputs_.add(input);
+	}
+	
+	/**
+	 * Takes the inputs of the frame being stamped (leader).
+	 */
+	synchronized ArrayList<Object> takeInputs()
+	{
+		ArrayList<Object> inputs = new ArrayList<Object>(inputs_);
+		inputs_.clear();
+		return inputs;
+	}
+	
+	/**
+	 * Steps the simulation for a frame, on the sketch thread before the frame is drawn.
+	 */
+	void step(int frame, List<Object> inputs, long seed, Process process)
+	{
+		int slot = frame % HISTORY;
+		historyFrames_[slot] = frame;
+		historyInputs_[slot] = inputs;
+		historySeeds_[slot] = seed;
+		
+		simulation_.step(inputs, seed);
+		stepped_ = frame;
+		
+		if(frame % hashInterval_ != 0)
+			return;
+		
+		long hash = simulation_.hash();
+		if(process.config_.isLeader())
+		{
+			hashes_.put(frame, hash);
+			for(Iterator<Integer> i = hashes_.keySet().iterator(); i.hasNext(); )
+			{
+				if(i.next() <= frame - HISTORY)
+					i.remove();
+			}
+		}
+		else
+			process.gather(HASH_CHANNEL, new long[] { frame, hash });
+	}
+	
+	/**
+	 * Compares the hashes the followers gathered with ours, and sends a snapshot to every rank that diverged
+	 * (leader). Called every frame, with null if no hashes arrived.
+	 */
+	void check(HashMap<Integer, Object> gathered, Process process)
+	{
+		if(gathered != null)
+		{
+			for(Map.Entry<Integer, Object> entry : gathered.entrySet())
+			{
+				long[] frameHash = (long[]) entry.getValue();
+				unchecked_.add(new long[] { entry.getKey(), frameHash[0], frameHash[1] });
+			}
+		}
+		if(unchecked_.isEmpty())
+			return;
+		
+		ArrayList<Integer> diverged = new ArrayList<Integer>();
+		for(Iterator<long[]> i = unchecked_.iterator(); i.hasNext(); )
+		{
+			long[] rankFrameHash = i.next();
+			int rank = (int) rankFrameHash[0];
+			int frame = (int) rankFrameHash[1];
+			
+			// we have not stepped the frame yet, keep the hash until we have
+			if(frame > stepped_)
+				continue;
+			i.remove();
+			
+			// a hash we no longer have, or never had, cannot show the rank agrees with us
+			Long ours = hashes_.get(frame);
+			if((ours == null || ours != rankFrameHash[2]) && !diverged.contains(rank))
+				diverged.add(rank);
+		}
+		if(diverged.isEmpty())
+			return;
+		
+		if(process.getDebug()) process.print("Ranks " + diverged + " diverged, resyncing at frame " + stepped_);
+		
+		// the snapshot is of the state after the frame we just stepped
+		byte[] state = simulation_.snapshot();
+		byte[] snapshot = new byte[4 + state.length];
+		snapshot[0] = (byte) (stepped_ >>> 24);
+		snapshot[1] = (byte) (stepped_ >>> 16);
+		snapshot[2] = (byte) (stepped_ >>> 8);
+		snapshot[3] = (byte) stepped_;
+		System.arraycopy(state, 0, snapshot, 4, state.length);
+		
+		for(int i = 0; i < diverged.size(); i++)
+			process.send(diverged.get(i), SNAPSHOT_CHANNEL, snapshot);
+	}
+	
+	/**
+	 * Restores a snapshot from the leader and replays the frames stepped since it was taken (follower).
+	 */
+	@SuppressWarnings("unchecked")
+	void resync(byte[] snapshot, Process process)
+	{
+		int frame = ((snapshot[0] & 0xFF) << 24) | ((snapshot[1] & 0xFF) << 16) | ((snapshot[2] & 0xFF) << 8) | (snapshot[3] & 0xFF);
+		if(stepped_ - frame >= HISTORY)
+		{
+			System.out.println("Lockstep snapshot of frame " + frame + " is too old to replay, ignored.");
+			return;
+		}
+		
+		byte[] state = new byte[snapshot.length - 4];
+		System.arraycopy(snapshot, 4, state, 0, state.length);
+		simulation_.restore(state);
+		
+		for(int f = frame + 1; f <= stepped_; f++)
+		{
+			int slot = f % HISTORY;
+			if(historyFrames_[slot] == f)
+				simulation_.step((List<Object>) historyInputs_[slot], historySeeds_[slot]);
+		}
+		
+		if(process.getDebug()) process.print("Resynced to frame " + frame + ", replayed to " + stepped_);
+	}
+}
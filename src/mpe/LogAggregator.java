@@ -0,0 +1,231 @@
+package mpe;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects the log lines of this process and of the children AutoLauncher started, one LogRing per source. A
+ * single daemon thread drains every ring in batches, writing each batch to the console with one call and, if a
+ * log folder is set, appending each source's lines to its own file. Logging never waits for the console, a full
+ * ring drops lines and the drain thread reports how many.
+ *
+ */
+public class LogAggregator extends Thread {
+	
+	// lines each ring holds before it starts dropping
+	public static final int RING_CAPACITY = 4096;
+	
+	// how long the drain thread sleeps when every ring is empty
+	private static final long IDLE_NANOS = 5000000L;
+	
+	private static LogAggregator instance_;
+	
+	// rings are only added, the drain thread takes a snapshot of the list each pass
+	private final Vector<LogRing> rings_ = new Vector<LogRing>();
+	private final HashMap<String, LogRing> byName_ = new HashMap<String, LogRing>();
+	
+	// the folder per-source log files are written to, or null for the console only
+	private volatile File folder_;
+	
+	// open log files, only used by the drain thread
+	private final HashMap<String, Writer> files_ = new HashMap<String, Writer>();
+	
+	// the console, captured before anything could replace System.out
+	private final PrintStream console_ = System.out;
+	
+	// drains whatever is left when the JVM exits, removed if the log thread is interrupted
+	private final Thread shutdownHook_;
+	
+	private LogAggregator()
+	{
+		super("mpe-log");
+		setDaemon(true);
+		
+		shutdownHook_ = new Thread(new Runnable() {
+			public void run() {
+				drain();
+				closeFiles();
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(shutdownHook_);
+	}
+	
+	/**
+	 * Gets the aggregator of this JVM, starting it on first use.
+	 */
+	public static synchronized LogAggregator get()
+	{
+		if(instance_ == null)
+		{
+			instance_ = new LogAggregator();
+			instance_.start();
+		}
+		return instance_;
+	}
+	
+	/**
+	 * Sets the folder every source also gets a log file in, named after the source.
+	 */
+	public void setFolder(String folder)
+	{
+		if(folder == null)
+			return;
+		File f = new File(folder);
+		f.mkdirs();
+		folder_ = f;
+	}
+	
+	/**
+	 * Gets the ring of a source, creating it on first use.
+	 */
+	public synchronized LogRing ring(String name)
+	{
+		LogRing ring = byName_.get(name);
+		if(ring == null)
+		{
+			ring = new LogRing(name, RING_CAPACITY);
+			byName_.put(name, ring);
+			rings_.add(ring);
+		}
+		return ring;
+	}
+	
+	/**
+	 * Queues a line from a source, dropping it if the source's ring is full.
+	 */
+	public void log(String name, String line)
+	{
+		ring(name).offer(line);
+	}
+	
+	/**
+	 * Writes a line right away, after the lines already queued by its source. Used for errors, which must not
+	 * be dropped.
+	 */
+	public synchronized void logNow(LogRing ring, String line)
+	{
+		drain();
+		console_.println(ring.name + ": " + line);
+		if(folder_ != null)
+		{
+			write(ring.name, line + "\n");
+			Writer w = files_.get(ring.name);
+			try {
+				if(w != null)
+					w.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	public void run()
+	{
+		// a FollowerAgent interrupts the threads of a session when it unloads it
+		while(!isInterrupted())
+		{
+			if(!drain())
+				LockSupport.parkNanos(IDLE_NANOS);
+		}
+		
+		drain();
+		closeFiles();
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook_);
+		} catch (IllegalStateException e) {
+			// the JVM is already exiting, the hook runs anyway
+		}
+		synchronized(LogAggregator.class)
+		{
+			if(instance_ == this)
+				instance_ = null;
+		}
+	}
+	
+	// writes everything queued, returns false if there was nothing
+	private synchronized boolean drain()
+	{
+		StringBuilder console = new StringBuilder();
+		Object[] rings = rings_.toArray();
+		
+		for(Object o : rings)
+		{
+			LogRing ring = (LogRing) o;
+			StringBuilder lines = null;
+			
+			String line;
+			while((line = ring.poll()) != null)
+			{
+				if(lines == null)
+					lines = new StringBuilder();
+				lines.append(line).append('\n');
+				console.append(ring.name).append(": ").append(line).append('\n');
+			}
+			
+			long dropped = ring.takeDropped();
+			if(dropped > 0)
+			{
+				String note = "[" + dropped + " lines dropped]";
+				if(lines == null)
+					lines = new StringBuilder();
+				lines.append(note).append('\n');
+				console.append(ring.name).append(": ").append(note).append('\n');
+			}
+			
+			if(lines != null && folder_ != null)
+				write(ring.name, lines);
+		}
+		
+		if(console.length() == 0)
+			return false;
+		
+		console_.print(console);
+		console_.flush();
+		for(Writer w : files_.values())
+		{
+			try {
+				w.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return true;
+	}
+	
+	private void write(String name, CharSequence lines)
+	{
+		try {
+			Writer w = files_.get(name);
+			if(w == null)
+			{
+				String file = name.replaceAll("[^A-Za-z0-9._-]", "_") + ".log";
+				w = new BufferedWriter(new FileWriter(new File(folder_, file), true));
+				files_.put(name, w);
+			}
+			w.append(lines);
+		} catch (IOException e) {
+			console_.println("Unable to write the log of " + name);
+			e.printStackTrace();
+		}
+	}
+	
+	private synchronized void closeFiles()
+	{
+		for(Writer w : files_.values())
+		{
+			try {
+				w.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		files_.clear();
+	}
+}
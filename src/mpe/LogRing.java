@@ -0,0 +1,91 @@
+package mpe;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue of log lines from one source, written by any number of threads and drained by the
+ * single LogAggregator thread. A line offered to a full ring is dropped and counted, so a slow console never
+ * blocks the thread that logs.
+ *
+ */
+public class LogRing {
+	
+	// the name lines from this ring are prefixed with, and the name of its log file
+	final String name;
+	
+	private final AtomicReferenceArray<String> slots_;
+	private final int mask_;
+	
+	// the next slot a producer claims
+	private final AtomicLong tail_ = new AtomicLong();
+	
+	// the next slot the drain thread reads, only written by the drain thread
+	private volatile long head_;
+	
+	// lines dropped since the drain thread last reported them
+	private final AtomicLong dropped_ = new AtomicLong();
+	
+	/**
+	 * @param name The source of the lines.
+	 * @param capacity The number of lines held, rounded up to a power of two.
+	 */
+	public LogRing(String name, int capacity)
+	{
+		this.name = name;
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		slots_ = new AtomicReferenceArray<String>(size);
+		mask_ = size - 1;
+	}
+	
+	/**
+	 * Adds a line, or drops it if the ring is full.
+	 * @return False if the line was dropped.
+	 */
+	public boolean offer(String line)
+	{
+		while(true)
+		{
+			long tail = tail_.get();
+			if(tail - head_ > mask_)
+			{
+				dropped_.incrementAndGet();
+				return false;
+			}
+			if(tail_.compareAndSet(tail, tail + 1))
+			{
+				slots_.set((int) (tail & mask_), line);
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Removes the next line. Only called by the drain thread.
+	 * @return The line, or null if the ring is empty or the next line is still being written.
+	 */
+	String poll()
+	{
+		long head = head_;
+		if(head == tail_.get())
+			return null;
+		
+		int index = (int) (head & mask_);
+		String line = slots_.get(index);
+		if(line == null)
+			return null;
+		
+		// free the slot before publishing the new head, so a producer never overwrites an unread line
+		slots_.set(index, null);
+		head_ = head + 1;
+		return line;
+	}
+	
+	/**
+	 * Gets and resets the number of dropped lines. Only called by the drain thread.
+	 */
+	long takeDropped()
+	{
+		return dropped_.getAndSet(0);
+	}
+}
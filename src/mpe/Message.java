@@ -0,0 +1,19 @@
+package mpe;
+
+/**
+ * A message on a named channel, as batched into a frame event.
+ *
+ */
+class Message {
+	
+	String channel;
+	DeliveryPolicy policy;
+	Object value;
+	
+	Message(String channel, DeliveryPolicy policy, Object value)
+	{
+		this.channel = channel;
+		this.policy = policy;
+		this.value = value;
+	}
+}
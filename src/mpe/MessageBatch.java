@@ -0,0 +1,221 @@
+package mpe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects the messages the leader sends during a frame and encodes them into the payload of the next frame
+ * event. A LATEST channel holds at most one message per frame, a QUEUE channel holds all of them in order.
+ *
+ * Payload format: [short count] then per message [UTF channel][byte kind | policy][value], where the value is
+ * written by the CodecRegistry. Channels in delta mode send a keyframe, [int length][encoded value], or a Delta
+ * against the previous value of the channel. A LATEST message is not sent at all while its value does not change,
+ * a QUEUE message always is, as an empty delta, since every message counts.
+ *
+ */
+public class MessageBatch {
+	
+	// message kinds, in the high bits of the policy byte
+	static final int VALUE    = 0x00;
+	static final int KEYFRAME = 0x10;
+	static final int DELTA    = 0x20;
+	static final int POLICY_MASK = 0x0F;
+	
+	/**
+	 * The last encoding sent or received on a delta channel.
+	 */
+	static class DeltaChannel {
+		byte[] last;
+		
+		// messages sent since the last keyframe (leader)
+		int sinceKeyframe;
+	}
+	
+	// encodes the message values
+	private final CodecRegistry codecs_;
+	
+	// the state of each channel in delta mode, on the leader only channels enabled with setDelta()
+	private final HashMap<String, DeltaChannel> deltas_ = new HashMap<String, DeltaChannel>();
+	
+	// how many messages a delta channel sends between keyframes
+	private int keyframeInterval_ = 60;
+	
+	// messages in the order they were sent, conflated LATEST messages keep their first position
+	private final ArrayList<Message> messages_ = new ArrayList<Message>();
+	
+	// the pending message of each LATEST channel
+	private final HashMap<String, Message> latest_ = new HashMap<String, Message>();
+	
+	public MessageBatch(CodecRegistry codecs)
+	{
+		codecs_ = codecs;
+	}
+	
+	/**
+	 * Adds a message to the batch. Called from the sketch thread.
+	 */
+	public synchronized void post(String channel, Object value, DeliveryPolicy policy)
+	{
+		if(policy == DeliveryPolicy.LATEST)
+		{
+			Message pending = latest_.get(channel);
+			if(pending != null)
+			{
+				pending.value = value;
+				return;
+			}
+			pending = new Message(channel, policy, value);
+			latest_.put(channel, pending);
+			messages_.add(pending);
+		}
+		else
+			messages_.add(new Message(channel, policy, value));
+	}
+	
+	/**
+	 * Enables or disables delta mode on a channel (leader).
+	 */
+	public synchronized void setDelta(String channel, boolean delta)
+	{
+		if(delta && !deltas_.containsKey(channel))
+			deltas_.put(channel, new DeltaChannel());
+		else if(!delta)
+			deltas_.remove(channel);
+	}
+	
+	public synchronized void setKeyframeInterval(int interval)
+	{
+		keyframeInterval_ = interval;
+	}
+	
+	public synchronized boolean isEmpty()
+	{
+		return messages_.isEmpty();
+	}
+	
+	/**
+	 * Encodes and clears the batch.
+	 * @return The payload, or null if no message needs to be sent this frame.
+	 */
+	public synchronized byte[] encode() throws IOException
+	{
+		if(messages_.isEmpty())
+			return null;
+		
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		int count = 0;
+		try {
+			for(int i = 0; i < messages_.size(); i++)
+			{
+				Message message = messages_.get(i);
+				DeltaChannel delta = deltas_.get(message.channel);
+				if(delta == null)
+				{
+					out.writeUTF(message.channel);
+					out.writeByte(VALUE | message.policy.ordinal());
+					codecs_.encode(message.value, out);
+					count++;
+				}
+				else if(encodeDelta(message, delta, out))
+					count++;
+			}
+			out.flush();
+		} finally {
+			messages_.clear();
+			latest_.clear();
+		}
+		
+		if(count == 0)
+			return null;
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.size() + 2);
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeShort(count);
+		body.writeTo(payload);
+		payload.flush();
+		return bytes.toByteArray();
+	}
+	
+	// writes a message of a delta channel, returns false if it is an unchanged LATEST value and was skipped
+	private boolean encodeDelta(Message message, DeltaChannel delta, DataOutputStream out) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream value = new DataOutputStream(bytes);
+		codecs_.encode(message.value, value);
+		value.flush();
+		byte[] encoded = bytes.toByteArray();
+		
+		boolean keyframe = delta.last == null || ++delta.sinceKeyframe >= keyframeInterval_;
+		if(!keyframe && message.policy == DeliveryPolicy.LATEST && Arrays.equals(encoded, delta.last))
+			return false;
+		
+		byte[] diff = keyframe ? null : Delta.diff(delta.last, encoded);
+		out.writeUTF(message.channel);
+		if(diff == null)
+		{
+			out.writeByte(KEYFRAME | message.policy.ordinal());
+			out.writeInt(encoded.length);
+			out.write(encoded);
+			delta.sinceKeyframe = 0;
+		}
+		else
+		{
+			out.writeByte(DELTA | message.policy.ordinal());
+			out.write(diff);
+		}
+		delta.last = encoded;
+		return true;
+	}
+	
+	/**
+	 * Decodes a payload produced by encode(), keeping the state of delta channels for the next payload
+	 * (follower). Payloads must be decoded in frame order.
+	 */
+	public synchronized void decode(byte[] data, int offset, int length, List<Message> into) throws IOException, ClassNotFoundException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+		int count = in.readUnsignedShort();
+		for(int i = 0; i < count; i++)
+		{
+			String channel = in.readUTF();
+			int kind = in.readUnsignedByte();
+			DeliveryPolicy policy = DeliveryPolicy.values()[kind & POLICY_MASK];
+			kind &= ~POLICY_MASK;
+			
+			Object value;
+			if(kind == VALUE)
+				value = codecs_.decode(in);
+			else
+			{
+				DeltaChannel delta = deltas_.get(channel);
+				if(delta == null)
+				{
+					delta = new DeltaChannel();
+					deltas_.put(channel, delta);
+				}
+				
+				if(kind == KEYFRAME)
+				{
+					delta.last = new byte[in.readInt()];
+					in.readFully(delta.last);
+				}
+				else if(delta.last != null)
+					delta.last = Delta.patch(delta.last, in);
+				else
+					throw new IOException("Delta before the first keyframe on channel " + channel);
+				
+				value = codecs_.decode(new DataInputStream(new ByteArrayInputStream(delta.last)));
+			}
+			
+			into.add(new Message(channel, policy, value));
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package mpe;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+
+/**
+ * UDP multicast path for frame events. The leader sends each encoded frame event as one datagram to the
+ * group, followers receive it on this thread and hand it to the Process, which delivers frame events in
+ * order and asks for lost ones over its TCP connection.
+ *
+ */
+public class MulticastChannel extends Thread {
+
+	// frame events larger than this are sent over TCP instead
+	public static final int MAX_DATAGRAM = 1400;
+
+	// how long a follower waits for a datagram before asking for the next frame over TCP
+	public static final int REPAIR_TIMEOUT = 50;
+
+	MulticastSocket socket_;
+	InetAddress group_;
+	int port_;
+
+	Process process_;
+
+	// reused for every datagram received
+	private final Command command_ = new Command();
+
+	/**
+	 * @param group The multicast group address.
+	 * @param port The port datagrams are sent to.
+	 * @param iface The name or address of the interface to send and receive on, or null for the system's
+	 * default multicast route.
+	 * @param receive True to join the group and receive frame events (follower).
+	 * @param p The process frame events are delivered to.
+	 */
+	public MulticastChannel(String group, int port, String iface, boolean receive, Process p) throws IOException
+	{
+		super("mpe-multicast");
+		setDaemon(true);
+
+		group_ = InetAddress.getByName(group);
+		port_ = port;
+		process_ = p;
+		NetworkInterface networkInterface = interfaceFor(iface);
+
+		if(receive)
+		{
+			socket_ = new MulticastSocket(port);
+			socket_.joinGroup(new InetSocketAddress(group_, port), networkInterface);
+			socket_.setSoTimeout(REPAIR_TIMEOUT);
+		}
+		else
+		{
+			socket_ = new MulticastSocket();
+			if(networkInterface != null)
+				socket_.setNetworkInterface(networkInterface);
+			socket_.setTimeToLive(1);
+		}
+	}
+
+	// looks an interface up by name, then by address, null leaves the choice to the system
+	private static NetworkInterface interfaceFor(String iface) throws IOException
+	{
+		if(iface == null)
+			return null;
+
+		NetworkInterface networkInterface = NetworkInterface.getByName(iface);
+		if(networkInterface == null)
+			networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(iface));
+		if(networkInterface == null)
+			throw new IOException("No network interface " + iface);
+		return networkInterface;
+	}
+
+	/**
+	 * Sends an encoded frame event to the group (leader).
+	 */
+	public void send(byte[] encoded)
+	{
+		try {
+			socket_.send(new DatagramPacket(encoded, encoded.length, group_, port_));
+		} catch (IOException e) {
+			// followers ask for the frame over TCP
+			if(process_.getDebug()) process_.print("Unable to multicast frame event: " + e.getMessage());
+		}
+	}
+
+	public void run()
+	{
+		byte[] buffer = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+		while(!socket_.isClosed())
+		{
+			try {
+				packet.setLength(buffer.length);
+				socket_.receive(packet);
+				command_.read(packet.getData(), packet.getOffset(), packet.getLength());
+				if(command_.opcode == Command.FRAME_EVENT)
+					process_.frameEventReceived(command_);
+			} catch (SocketTimeoutException e) {
+				process_.frameEventTimeout();
+			} catch (IOException e) {
+				if(process_.getDebug()) process_.print("Dropped malformed datagram: " + e.getMessage());
+			}
+		}
+	}
+
+	public void close()
+	{
+		socket_.close();
+	}
+}
@@ -0,0 +1,171 @@
+package mpe;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses frame event payloads above a size threshold. The leader compresses a payload once before it is
+ * written to every follower and marks the command with the COMPRESSED flag, followers inflate it on their
+ * network thread. Keeps totals of the bytes and time spent, for the compression metrics of Process.
+ *
+ * Compressed payload format: [int uncompressed length][deflate stream].
+ *
+ */
+public class PayloadCompressor {
+	
+	// algorithms
+	public static final String NONE = "none";
+	public static final String DEFLATE = "deflate";
+	
+	// reused, only called from the leader's frame loop
+	private final Deflater deflater_;
+	
+	// reused, only called from the thread delivering frame events
+	private final Inflater inflater_ = new Inflater();
+	
+	// payloads smaller than this are sent as they are
+	private final int threshold_;
+	
+	// output buffer of the deflater, grows as needed
+	private byte[] buffer_ = new byte[0];
+	
+	// metrics, written by one thread and read by the sketch
+	private volatile long compressed_ = 0;
+	private volatile long bytesIn_ = 0;
+	private volatile long bytesOut_ = 0;
+	private volatile long compressNanos_ = 0;
+	private volatile long decompressed_ = 0;
+	private volatile long decompressNanos_ = 0;
+	
+	/**
+	 * @param algorithm The algorithm, only DEFLATE is supported. Compression is skipped for NONE.
+	 * @param threshold The smallest payload that is compressed, in bytes.
+	 */
+	public PayloadCompressor(String algorithm, int threshold)
+	{
+		if(DEFLATE.equals(algorithm))
+			deflater_ = new Deflater(Deflater.BEST_SPEED);
+		else
+		{
+			if(!NONE.equals(algorithm))
+				System.out.println("Unknown compression algorithm " + algorithm + ", payloads will not be compressed");
+			deflater_ = null;
+		}
+		threshold_ = threshold;
+	}
+	
+	/**
+	 * Compresses the command's payload if it is large enough and compression pays off.
+	 */
+	public void compress(Command c)
+	{
+		if(deflater_ == null || c.payloadLength < threshold_)
+			return;
+		
+		long start = System.nanoTime();
+		int length = c.payloadLength;
+		if(buffer_.length < length)
+			buffer_ = new byte[length];
+		
+		deflater_.reset();
+		deflater_.setInput(c.payload, 0, length);
+		deflater_.finish();
+		
+		// only the part smaller than the original is of any use
+		int size = 4;
+		while(!deflater_.finished() && size < length)
+			size += deflater_.deflate(buffer_, size, length - size);
+		
+		if(deflater_.finished() && size < length)
+		{
+			buffer_[0] = (byte) (length >>> 24);
+			buffer_[1] = (byte) (length >>> 16);
+			buffer_[2] = (byte) (length >>> 8);
+			buffer_[3] = (byte) length;
+			
+			byte[] payload = new byte[size];
+			System.arraycopy(buffer_, 0, payload, 0, size);
+			c.setPayload(payload);
+			c.flags |= Command.COMPRESSED;
+			
+			bytesIn_ += length;
+			bytesOut_ += size;
+			compressed_++;
+		}
+		compressNanos_ += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Replaces a compressed payload with the original bytes.
+	 */
+	public synchronized void decompress(Command c) throws IOException
+	{
+		if((c.flags & Command.COMPRESSED) == 0)
+			return;
+		
+		long start = System.nanoTime();
+		byte[] data = c.payload;
+		int length = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+		byte[] payload = new byte[length];
+		
+		inflater_.reset();
+		inflater_.setInput(data, 4, c.payloadLength - 4);
+		try {
+			int n = 0;
+			while(n < length && !inflater_.finished())
+			{
+				int read = inflater_.inflate(payload, n, length - n);
+				if(read == 0 && (inflater_.needsInput() || inflater_.needsDictionary()))
+					break;
+				n += read;
+			}
+			if(n != length)
+				throw new IOException("Truncated compressed payload, " + n + " of " + length + " bytes");
+		} catch (DataFormatException e) {
+			throw new IOException("Malformed compressed payload: " + e.getMessage());
+		}
+		
+		c.setPayload(payload);
+		c.flags &= ~Command.COMPRESSED;
+		
+		decompressed_++;
+		decompressNanos_ += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Gets the original size of the compressed payloads divided by their compressed size.
+	 */
+	public float getRatio()
+	{
+		long out = bytesOut_;
+		return out == 0 ? 1.0f : (float) bytesIn_ / out;
+	}
+	
+	/**
+	 * Gets the number of payloads compressed (leader) and decompressed (follower).
+	 */
+	public long getCompressed()
+	{
+		return compressed_;
+	}
+	
+	public long getDecompressed()
+	{
+		return decompressed_;
+	}
+	
+	/**
+	 * Gets the total time spent compressing payloads, including those that did not shrink, in nanoseconds.
+	 */
+	public long getCompressNanos()
+	{
+		return compressNanos_;
+	}
+	
+	public long getDecompressNanos()
+	{
+		return decompressNanos_;
+	}
+}
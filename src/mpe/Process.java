@@ -1,19 +1,28 @@
 package mpe;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.lang.ProcessBuilder.Redirect;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Vector;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -35,8 +44,34 @@ import processing.core.*;
 
 public class Process extends Thread {
 	
+	// the messages received with a frame event, waiting for that frame to be drawn (follower)
+	static class FramePayload {
+		int frame;
+		ArrayList<Message> messages = new ArrayList<Message>();
+		
+		// the leader time and seed of the frame, only set on the payload of a frame event
+		boolean stamped;
+		long time;
+		long seed;
+	}
+	
 	public final static String VERSION = "##version##";
 	
+	/**
+	 * The channel used by broadcast(Object) and getMessage().
+	 */
+	public final static String DEFAULT_CHANNEL = "";
+	
+	// how many issued frame events the leader keeps to answer repair requests
+	final static int REPAIR_HISTORY = 128;
+	
+	// the most multicast timeouts between repair requests for a frame that may not have been issued yet
+	final static int MAX_REPAIR_BACKOFF = 64;
+
+	// bounds of the interval a follower waits between attempts to reach its parent, in milliseconds
+	final static long CONNECT_BACKOFF_MIN = 50;
+	final static long CONNECT_BACKOFF_MAX = 2000;
+	
 	// used for timers
 	public static long start;
 	public static long end;
@@ -52,8 +87,8 @@ public class Process extends Thread {
 	 * Followers simply maintain a connection to the leader and wait for frame events.
 	 */
 	
-	// if we are the leader, this will contain follower communication channels
-	Vector<Connection> clients_;
+	// if we are the leader or a relay, this will contain the communication channels to our children
+	Transport transport_;
 	
 	// if we are a follower, this will be our communication layer to the leader
 	Connection leader_;
@@ -83,22 +118,136 @@ public class Process extends Thread {
 	boolean debug_ = false;
 	
 	// this is the object on which synchronization is based
-	private final FrameLock frameLock_ = new FrameLock();
+	private final FrameLock frameLock_;
+	
+	// the frame currently being drawn
+	volatile int drawFrame_ = 0;
 	
-	// the cyclic barrier servers as a barrier synchronization for all render clients
-	public final CyclicBarrier barrier_;
+	// the frame barrier serves as a barrier synchronization for all render clients
+	public final FrameBarrier barrier_;
 	
 	// have we notified?
 	AtomicBoolean notified_;
 	
-	// do we have input to send along with the next FE message? (leader)
-	boolean sendAttributes_;
+	// encodes message values, shared by the outbox and the decoder
+	private final CodecRegistry codecs_ = new CodecRegistry();
+	
+	// the messages that will be sent along with the next FE message (leader)
+	private final MessageBatch outbox_ = new MessageBatch(codecs_);
+	
+	// decodes the messages of each FE, keeping the last value of delta channels (follower)
+	private final MessageBatch received_ = new MessageBatch(codecs_);
+	
+	// compresses large FE payloads (leader) and inflates them (follower)
+	private final PayloadCompressor compressor_;
+	
+	// the delivery policy of each named channel, LATEST unless set otherwise (leader)
+	private final HashMap<String, DeliveryPolicy> channelPolicies_ = new HashMap<String, DeliveryPolicy>();
+	
+	// the messages received from the leader that the sketch has not read yet (follower)
+	private final Inbox inbox_ = new Inbox();
+	
+	// messages received ahead of the frame they belong to, ordered by frame (follower)
+	private final PriorityBlockingQueue<FramePayload> pending_ = new PriorityBlockingQueue<FramePayload>(16,
+			new Comparator<FramePayload>() {
+				public int compare(FramePayload a, FramePayload b) {
+					return a.frame < b.frame ? -1 : (a.frame == b.frame ? 0 : 1);
+				}
+			});
+	
+	// the messages sent to single ranks during this frame, by rank (leader)
+	private final HashMap<Integer, MessageBatch> targeted_ = new HashMap<Integer, MessageBatch>();
+	
+	// the messages and collective contributions sent with the next EF message (follower)
+	private final UpstreamBatch upstream_ = new UpstreamBatch();
+	
+	// what the subtrees sent with their EF messages, merged per frame until the frame completes (leader, relay)
+	private final HashMap<Integer, UpstreamBatch> collected_ = new HashMap<Integer, UpstreamBatch>();
+	
+	// the interpolated channels, by name
+	private final HashMap<String, Interpolator> interpolators_ = new HashMap<String, Interpolator>();
+	
+	// the newest state of each interpolated channel, held until the next tick (leader)
+	private final HashMap<String, Object> held_ = new HashMap<String, Object>();
+	
+	// the leader time of the last tick, -1 before the first (leader)
+	private long lastTick_ = -1;
+	
+	// the lockstep simulation, if the sketch set one
+	private volatile Lockstep lockstep_;
+	
+	// the leader time and seed of the frame being drawn
+	private volatile long frameMicros_ = 0;
+	private volatile long frameSeed_ = 0;
+	
+	// draws the per-frame seeds (leader)
+	private final Random seeds_ = new Random();
+	
+	// the local time the process was created, leader time counts from it (leader)
+	private final long startMicros_ = ClockSync.localMicros();
+	
+	// estimates the leader's clock (follower)
+	ClockSync clock_;
+	
+	// combiners for reductions, by name
+	private final ConcurrentHashMap<String, Combiner> combiners_ = new ConcurrentHashMap<String, Combiner>();
+	
+	// entities routed to the followers showing them, created on first use (leader)
+	private EntityRegistry entities_;
+	
+	// receives entity events before each frame is drawn (follower)
+	private EntityListener entityListener_;
+	
+	// the ranks of the children admitted by the handshake, see admit()
+	private final HashSet<Integer> admitted_ = new HashSet<Integer>();
 	
-	// do we have input from the server along with the FE message? (follower)
-	boolean receivedAttributes_;
+	// frames whose MESSAGE for us arrived before their frame event (follower)
+	private final HashSet<Integer> arrivedMessages_ = new HashSet<Integer>();
 	
-	// this is the actual object that will be sent along with the FE message
-	Object attribute_;
+	// frames whose frame event announced a MESSAGE for us that has not arrived yet, they are not released (follower)
+	private final TreeSet<Integer> awaitingMessages_ = new TreeSet<Integer>();
+	
+	// how many frames the leader may run ahead of the slowest follower
+	int pipelineDepth_;
+	
+	// the frame sequence number: last frame issued (leader) or last frame received (follower)
+	volatile int frame_ = 0;
+	
+	// reused for every command read from the leader (follower)
+	private final Command command_ = new Command();
+	
+	// reused for every end-of-frame message sent to the leader (follower)
+	private final Command endFrame_ = new Command(Command.END_FRAME, 0);
+	
+	// reused for every repair request sent to the leader (follower)
+	private final Command repair_ = new Command(Command.REPAIR, 0);
+	
+	// serializes writes to the parent from the render and network threads (follower)
+	private final Object upstreamLock_ = new Object();
+	
+	// multicast path for frame events, if enabled
+	MulticastChannel multicast_;
+	
+	// the transport to children on our own host, they never receive multicast (leader)
+	Transport sharedTransport_;
+	
+	// recently issued frame events, indexed by frame modulo REPAIR_HISTORY (leader)
+	private final byte[][] history_ = new byte[REPAIR_HISTORY][];
+	private final int[] historyFrames_ = new int[REPAIR_HISTORY];
+	
+	// frame events that arrived while an earlier one is missing (follower)
+	private final HashMap<Integer, byte[]> outOfOrder_ = new HashMap<Integer, byte[]>();
+	
+	// the frame a follower has been waiting for since its last frame event, and the multicast timeouts since
+	private int idleFrame_ = -1;
+	private int idleTimeouts_ = 0;
+	
+	// reused to deliver frame events from outOfOrder_ (follower)
+	private final Command buffered_ = new Command();
+	
+	// bulk channel, if enabled in the configuration
+	BulkSender bulkSender_;
+	BulkReceiver bulkReceiver_;
 	
 	// mouse and keyboard events sent every frame
 	//MouseEvent mouseEvent_ = null;
@@ -110,11 +259,17 @@ public class Process extends Thread {
 	
 	// socket if the process is a follower, and complementary streams
 	Socket processSocket_;
-	ObjectInputStream ois_;
-	ObjectOutputStream oos_;
+	DataInputStream dis_;
+	DataOutputStream dos_;
+	
+	// the rings to our parent instead of the socket, if it runs on the same host
+	SharedRing sharedRing_;
 	
 	AutoLauncher autoLauncher_;
 	
+	// the lines written by print()
+	private LogRing log_;
+	
 	// by default, do not serialize mouse and keyboard events (they are not serializable yet) //todo
 	//boolean enableDefaultSerialization_ = false;
 	
@@ -136,8 +291,12 @@ public class Process extends Thread {
 		config_ = config;
 		debug_ = config_.getDebug();
 		
+		// print() queues lines for the log thread, so the frame loop never waits for the console
+		LogAggregator.get().setFolder(config_.getLogPath());
+		log_ = LogAggregator.get().ring(String.valueOf(config_.getRank()));
+		
 		// create the followerState, which keeps track of how many renderers have rendered and are waiting
-		followerState_ = new FollowerState(config_.getNumFollowers());
+		followerState_ = new FollowerState(config_.getNumChildren());
 		if(debug_) print("Number of followers: " + config_.getNumFollowers());
 		
 		// is this a 3D (P3D/OpenGL/GLGraphics) or 2D (P2D) sketch?
@@ -156,7 +315,19 @@ public class Process extends Thread {
 		// by default, automatically serialize mouse and keyboard events
 		
 		
-		barrier_ = new CyclicBarrier(config_.numFollowers_ + 1);
+		pipelineDepth_ = config_.getPipelineDepth();
+		outbox_.setKeyframeInterval(config_.getKeyframeInterval());
+		channelPolicies_.put(EntityRegistry.CHANNEL, DeliveryPolicy.QUEUE);
+		channelPolicies_.put(Lockstep.SNAPSHOT_CHANNEL, DeliveryPolicy.QUEUE);
+		combiners_.put("sum", Combiners.SUM_COMBINER);
+		combiners_.put("min", Combiners.MIN_COMBINER);
+		combiners_.put("max", Combiners.MAX_COMBINER);
+		compressor_ = new PayloadCompressor(config_.getCompression(), config_.getCompressionThreshold());
+		frameLock_ = new FrameLock(config_.getFrameWait());
+		
+		// a relay's own end-of-frame message counts alongside those of its children
+		int parties = config_.isRelay() ? config_.getNumChildren() + 1 : config_.getNumChildren();
+		barrier_ = new FrameBarrier(parties, pipelineDepth_, config_.getBarrierWait());
 		
 		//set the initial window location of the processing sketch
 		pApplet_.frame.setLocation(config_.getWindowLocation()[0],config_.getWindowLocation()[1]);
@@ -170,6 +341,10 @@ public class Process extends Thread {
 		if (debug_)
 			config_.printSettings();
 		
+		// created here so the sketch can set a bulk listener before start()
+		if(config_.getBulkPort() > 0 && !config_.isLeader())
+			bulkReceiver_ = new BulkReceiver(config_.getHeadHost(), config_.getBulkPort(), this);
+		
 		running_ = true;
 	}
 	
@@ -181,10 +356,73 @@ public class Process extends Thread {
 		if(debug_) print("Trying to acquire framelock!");
 		
 		// wait on framelock to be unlocked
-		frameLock_.acquire();
+		drawFrame_ = frameLock_.acquire();
 
 		if(debug_) print("Acquired framelock!");
 		
+		// deliver the messages that were sent with the frame about to be drawn
+		FramePayload payload;
+		while((payload = pending_.peek()) != null && payload.frame <= drawFrame_)
+		{
+			pending_.poll();
+			if(payload.stamped)
+			{
+				frameMicros_ = payload.time;
+				frameSeed_ = payload.seed;
+				if(config_.isFrameSeed())
+				{
+					pApplet_.randomSeed(payload.seed);
+					pApplet_.noiseSeed(payload.seed);
+				}
+			}
+			
+			// in lockstep the inputs of a frame event step the simulation instead of reaching the inbox
+			ArrayList<Object> inputs = null;
+			if(payload.stamped && lockstep_ != null)
+				inputs = new ArrayList<Object>();
+			
+			for(int i = 0; i < payload.messages.size(); i++)
+			{
+				Message message = payload.messages.get(i);
+				Interpolator interpolator;
+				if(inputs != null && message.channel.equals(Lockstep.INPUT_CHANNEL))
+					inputs.add(message.value);
+				else if(payload.stamped && (interpolator = interpolators_.get(message.channel)) != null)
+					interpolator.add(payload.time, message.value);
+				else
+					inbox_.deliver(message);
+			}
+			
+			if(inputs != null)
+				lockstep_.step(payload.frame, inputs, payload.seed, this);
+		}
+		
+		if(lockstep_ != null)
+		{
+			// every frame, hashes of frames the leader had not stepped yet are retained until it has
+			if(config_.isLeader())
+				lockstep_.check(inbox_.received(Lockstep.HASH_CHANNEL) ? getGathered(Lockstep.HASH_CHANNEL) : null, this);
+			while(inbox_.received(Lockstep.SNAPSHOT_CHANNEL))
+				lockstep_.resync((byte[]) inbox_.poll(Lockstep.SNAPSHOT_CHANNEL), this);
+		}
+		
+		if(entityListener_ != null)
+		{
+			while(inbox_.received(EntityRegistry.CHANNEL))
+			{
+				EntityEvent[] events = (EntityEvent[]) inbox_.poll(EntityRegistry.CHANNEL);
+				for(int i = 0; i < events.length; i++)
+				{
+					if(events[i].kind == EntityEvent.ENTER)
+						entityListener_.entityEntered(events[i]);
+					else if(events[i].kind == EntityEvent.UPDATE)
+						entityListener_.entityUpdated(events[i]);
+					else
+						entityListener_.entityLeft(events[i]);
+				}
+			}
+		}
+		
 		placeScreen();
 	}
 	
@@ -210,19 +448,16 @@ public class Process extends Thread {
 		
 		//autoLauncher_.shutDown();
 		
+		// let our parent see we are gone rather than wait for the heartbeat to go stale
+		if(sharedRing_ != null)
+			sharedRing_.close();
+		
 		System.exit(0);
 		
-		for(int i = 0; i < clients_.size(); i++) 
-		{
-			if(debug_) print("Shuting down client process "+i);
-			
-			// shut down client processes here
-			//Connection c = clients_.elementAt(i);
-			//c = null;
-			
-			clients_.elementAt(i).interrupt();
-			
-		}
+		// shut down client processes here
+		if(transport_ != null)
+			transport_.shutDown();
+		
 		return;
 	}
 	
@@ -262,10 +497,29 @@ public class Process extends Thread {
 		}
 		*/
 		
+		// we are a follower on the same host as our parent, attach to the shared memory ring it created
+		if(!config_.isLeader() && config_.isSharedUpstream())
+		{
+			try {
+				sharedRing_ = SharedRing.attach(SharedRing.fileFor(config_.getPort(), config_.getRank()),
+						System.currentTimeMillis() + SharedRing.ATTACH_TIMEOUT);
+			} catch (IOException e) {
+				printError("Unable to attach to parent through shared memory within "
+						+ SharedRing.ATTACH_TIMEOUT / 1000 + "s: " + e.getMessage());
+				System.exit(-1);
+			}
+			dos_ = new DataOutputStream(new BufferedOutputStream(sharedRing_.childOutput()));
+			dis_ = new DataInputStream(new BufferedInputStream(sharedRing_.childInput()));
+			
+			if(debug_) print("Attached to parent through shared memory");
+		}
+		
 		// we are just a follower, register with leader
-		if(!config_.isLeader())
+		else if(!config_.isLeader())
 		{
-			// set up socket to leader, retrying every two seconds if fail
+			// set up socket to leader, backing off while it is not listening yet
+			long backoff = CONNECT_BACKOFF_MIN;
+			Random jitter = new Random();
 			boolean notConnected = true;
 			while(notConnected)
 			{
@@ -276,33 +530,51 @@ public class Process extends Thread {
 					// disable Nagle's algorithm, otherwise we get TCP delays of ~40ms
 					processSocket_.setTcpNoDelay(true);
 					
-					oos_ = new ObjectOutputStream(processSocket_.getOutputStream());
-		            ois_ = new ObjectInputStream(processSocket_.getInputStream());
+					dos_ = new DataOutputStream(new BufferedOutputStream(processSocket_.getOutputStream()));
+					dis_ = new DataInputStream(new BufferedInputStream(processSocket_.getInputStream()));
 				} catch (UnknownHostException e) {
 					System.out.println("Can't connect to leader process! Did you specify a 'head' process in config? Retrying!");
 					e.printStackTrace();
 					notConnected = true;
 				} catch (IOException e) {
-					System.out.println("Can't connect to leader process! Did you specify a 'head' process in config? Retrying!");
-					e.printStackTrace();
+					if(debug_) print("Can't connect to leader process, retrying in " + backoff + "ms: " + e.getMessage());
 					notConnected = true;
 				}
 				
-				// sleep for 2 seconds and then retry to connect to leader
-				try {
-					Thread.sleep(2000);
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+				// wait a jittered, growing interval, so followers started together do not retry in lockstep
+				if(notConnected)
+				{
+					try {
+						Thread.sleep(backoff / 2 + (long) (jitter.nextDouble() * backoff));
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					backoff = Math.min(backoff * 2, CONNECT_BACKOFF_MAX);
 				}
 			}
 		}
 
+		// introduce ourselves, so our parent can check our configuration and route messages for our rank
+		if(!config_.isLeader())
+		{
+			try {
+				Handshake.greet(dis_, dos_, config_);
+			} catch (IOException e) {
+				System.out.println("Unable to join the leader: " + e.getMessage());
+				System.exit(-1);
+			}
+		}
+
+		// keep measuring the offset to the leader's clock
+		if(!config_.isLeader())
+		{
+			clock_ = new ClockSync(this);
+			clock_.start();
+		}
+
 		// we are the leader, create connection listener(s)
 		if(config_.isLeader())
 		{
-			clients_ = new Vector<Connection>();
-			
 			// create thread to launch processes on remote nodes
 			if(autostart_)
 			{
@@ -313,50 +585,92 @@ public class Process extends Thread {
 				//autoLauncher.start();
 			}
 			
-			// set listener for all connections
-	        ServerSocket listener = null;
-	    	Socket followerSocket = null;
-
-	    	try {
-				listener = new ServerSocket(config_.getPort());
-			} catch (IOException e) {
-				System.out.println("Unable to listen on port " + config_.getPort() + " , quitting.");
-				System.exit(-1);
+			listen(config_.getPort());
+		}
+		
+		// we are a relay, accept the processes below us in the tree
+		else if(config_.isRelay())
+		{
+			listen(config_.getRelayPort());
+		}
+		
+		// large transfers get their own connections to the leader, so they never hold up a frame event
+		if(config_.getBulkPort() > 0)
+		{
+			if(config_.isLeader())
+			{
+				try {
+					bulkSender_ = new BulkSender(config_.getBulkPort(), config_.getNumFollowers(), this);
+					bulkSender_.start();
+				} catch (IOException e) {
+					System.out.println("Unable to listen on bulk port " + config_.getBulkPort() + ", bulk transfers disabled.");
+				}
 			}
-
-	    	// whenever a new connection is made, create a handler thread
-	    	while(!followerState_.allConnected())
-	    	{
-	    		try {
-					followerSocket = listener.accept();
-					
-					// disable Nagle's algorithm, otherwise we get TCP delays of ~40ms
-					followerSocket.setTcpNoDelay(true);
-					
-					if(debug_) print("Received a client connection: " + followerSocket.getInetAddress());
+			else
+			{
+				bulkReceiver_.start();
+			}
+		}
+		
+		// frame events travel over multicast, the TCP connections carry acks and repairs
+		if(config_.isLeader() || config_.isMulticastReceiver())
+		{
+			if(config_.getMulticastGroup() != null)
+			{
+				try {
+					multicast_ = new MulticastChannel(config_.getMulticastGroup(), config_.getMulticastPort(),
+							config_.getMulticastInterface(), !config_.isLeader(), this);
+					if(!config_.isLeader())
+						multicast_.start();
 				} catch (IOException e) {
-					System.out.println("Unable to accept connection!");
+					System.out.println("Unable to join multicast group " + config_.getMulticastGroup() + ", using TCP only.");
+					e.printStackTrace();
+					multicast_ = null;
 				}
-	    		
-	    		// new client, so increment the counter of the number of connected
-	    		followerState_.incrementConnected();
-	    		
-	    		// create a new connection object for this client and run communication in a separate thread
-	    		Connection conn = new Connection(followerSocket, followerState_, this);
-	    		conn.start();
-	    		
-	    		// add the client to the clients vectors, so that we can later broadcast, etc.
-	    		clients_.add(conn);
-	    	}
-	    	
-	    	if(debug_) print("All clients have connected. Start event loop");
-	    	
+			}
 		}
 		
 		// calls the run() command based on Java thread semantics
 		super.start();
 	}
 	
+	// creates the transport and waits for every child to connect
+	private void listen(int port)
+	{
+		// set listener for all connections
+		Transport network;
+		if(config_.getTransport().equals("nio"))
+			network = new SelectorTransport(followerState_, this);
+		else
+			network = new ThreadedTransport(followerState_, this);
+		
+		// children on our own host get shared memory rings instead of sockets
+		int[] local = config_.getLocalChildren();
+		if(local.length == 0)
+			transport_ = network;
+		else
+		{
+			CompositeTransport composite = new CompositeTransport();
+			int remote = config_.getNumChildren() - local.length;
+			if(remote > 0)
+				composite.add(network, remote);
+			sharedTransport_ = new SharedMemoryTransport(local, followerState_, this);
+			composite.add(sharedTransport_, local.length);
+			transport_ = composite;
+		}
+
+		try {
+			transport_.connect(port, config_.getNumChildren());
+		} catch (IOException e) {
+			System.out.println("Unable to accept children on port " + port + ", quitting: " + e.getMessage());
+			System.exit(-1);
+		}
+		
+		transport_.start();
+		
+		if(debug_) print("All clients have connected. Start event loop");
+	}
+	
 	/**
 	 * Called auto-magically by start().
 	 */
@@ -368,44 +682,37 @@ public class Process extends Thread {
 			if(config_.isLeader())
 			{
 				
-				try {
-					barrier_.await();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (BrokenBarrierException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+				// wait until the oldest frame still allowed in flight has been acknowledged by every follower,
+				// in lockstep (depth 1) that is the frame issued last
+				barrier_.await(frame_ + 1 - pipelineDepth_);
 				
-				barrier_.reset();
+				// stamp the frame before it is released, so every rank draws it with the same time and seed
+				FramePayload stamp = stampFrame(frame_ + 1);
 				
 				// release the framelock so master can render
 				if(debug_) print("Releasing framelock!");
-				frameLock_.release();
+				frameLock_.release(frame_ + 1);
 				
 									
 				// send a FE message to all clients so they render the next scene
 				Process.start = System.currentTimeMillis();
-				broadcastFE();
+				broadcastFE(stamp);
 			}
 
 			// we are a follower and we should receive a msg
 			else
 			{
-				Command command = null;
 				try {
-					command = (Command) ois_.readObject();
+					command_.read(dis_);
 				} catch(Exception e){	
 					try {
 					shutDown();
 					} catch (IOException e1) {
 						e1.printStackTrace();
 					}
-				}
-				if(command == null)
 					break; // remote end hung up
-				readCommand(command);
+				}
+				readCommand(command_);
 			}
 		}
 	}
@@ -561,134 +868,1064 @@ public class Process extends Thread {
 		pApplet_.translate(config_.getOffsets()[0] * -1, config_.getOffsets()[1] * -1);
 	}
 	
-	// reads the command from the leader, releases the frameLock if the FE command was sent
+	// reads the command from the leader
 	private void readCommand(Command c)
 	{
-		// received a frame event command from server, unlock framelock object
-		if(c.command.equals("fe"))
+		if(c.opcode == Command.FRAME_EVENT)
+			frameEventReceived(c);
+		else if(c.opcode == Command.MESSAGE)
+			targetedReceived(c);
+		else if(c.opcode == Command.PONG)
+			clock_.pongReceived(Command.readLong(c.payload, 0), Command.readLong(c.payload, 8));
+	}
+	
+	// asks the parent for its leader time (follower)
+	void sendPing(int sequence, long sent)
+	{
+		Command ping = new Command(Command.PING, sequence);
+		ping.setPayload(longBytes(sent));
+		synchronized(upstreamLock_)
 		{
-			if(debug_) print("Received FE");
-			
-			// receives the attribute if not null
-			if(c.att != null)
-			{
-				receivedAttributes_ = true;
-				attribute_ = c.att;
-			}
-			/*
-			// gets mouse and keyboard events from head process
-			if(c.k != null)
-			{
-				pApplet_.keyEvent = c.k;
-			}
-			if(c.m != null)
-			{
-				pApplet_.mouseEvent = c.m;
+			try {
+				ping.write(dos_);
+				dos_.flush();
+			} catch (IOException e) {
+				System.out.println("Unable to write to server! Server disconnected.");
+				System.exit(-1);
 			}
-			*/
-			if(debug_) print("Releasing framelock!");
-			
-			// release the framelock
-			frameLock_.release();
-			
-			
 		}
 	}
 	
-	private void broadcastFE()
+	/**
+	 * Checks a child's HELLO against our configuration. Called concurrently by the transports while they
+	 * accept children.
+	 * @return The reason the child is refused, or null to admit it.
+	 */
+	synchronized String admit(int rank, int version, int[] viewport)
 	{
-		// create frame event command
-		Command command = new Command();
-		command.command = "fe";
-		
-		// set keyboard and mouse
-		//command.k = keyEvent_;
-		//command.m = mouseEvent_;
-		
-		if(sendAttributes_)
-		{
-			command.att = attribute_;
-		}
-		else command.att = null;
-		
-		// we have appended the attribute to the command, and can now set it back to false such that repeated
-		// messages are not sent
-		sendAttributes_ = false;
-		
-		for(int i = 0; i < clients_.size(); i++)
+		if(version != Handshake.PROTOCOL_VERSION)
+			return "protocol version " + version + ", expected " + Handshake.PROTOCOL_VERSION;
+		if(config_.getNextHop(rank) != rank)
+			return "rank " + rank + " is not a child of rank " + config_.getRank();
+		if(!Arrays.equals(viewport, config_.getViewport(rank)))
+			return "rank " + rank + " has viewport " + Arrays.toString(viewport) + ", expected "
+					+ Arrays.toString(config_.getViewport(rank)) + ", are the configuration files the same?";
+		if(!admitted_.add(rank))
+			return "rank " + rank + " is already connected";
+		return null;
+	}
+	
+	/**
+	 * Answers a child's PING with our leader time.
+	 */
+	byte[] pong(int sequence, long sent)
+	{
+		long now = getLeaderMicros();
+		Command pong = new Command(Command.PONG, sequence);
+		byte[] payload = new byte[16];
+		System.arraycopy(longBytes(sent), 0, payload, 0, 8);
+		System.arraycopy(longBytes(now), 0, payload, 8, 8);
+		pong.setPayload(payload);
+		return pong.encode();
+	}
+	
+	private static byte[] longBytes(long value)
+	{
+		byte[] bytes = new byte[8];
+		for(int i = 7; i >= 0; i--)
 		{
-			clients_.elementAt(i).sendCommand(command);
+			bytes[i] = (byte) value;
+			value >>>= 8;
 		}
-		
-		// set events to null so they are not resent
-		//keyEvent_ = null;
-		//mouseEvent_ = null;
+		return bytes;
 	}
 	
-	// sends msg to leader indicating the frame has been drawn
-	private void endFrame()
+	/**
+	 * Called by the network thread for the messages sent to one rank. A relay passes on the messages for the
+	 * ranks below it, our own are delivered with their frame.
+	 */
+	synchronized void targetedReceived(Command c)
 	{
-		Command command = new Command();
-		command.command = "ef";
+		int rank = readInt(c.payload, 0);
+		if(rank != config_.getRank())
+		{
+			if(transport_ == null || !transport_.send(config_.getNextHop(rank), c.encode()))
+				System.out.println("No route to rank " + rank + ", messages dropped.");
+			return;
+		}
 		
 		try {
-			oos_.writeObject(command);
-		} catch (IOException e) {
-			System.out.println("Unable to write to server! Server disconnected.");
-			System.exit(-1);
+			FramePayload payload = new FramePayload();
+			payload.frame = c.frame;
+			received_.decode(c.payload, 4, c.payloadLength - 4, payload.messages);
+			pending_.add(payload);
+		} catch (Exception e) {
+			System.out.println("Unable to read messages from leader!");
+			e.printStackTrace();
 		}
+		
+		// the frame event may already be waiting for these
+		if(!awaitingMessages_.remove(c.frame))
+			arrivedMessages_.add(c.frame);
+		releaseFrames();
 	}
 	
-	public void print(String msg)
+	// releases every handled frame up to the first one still waiting for its MESSAGE
+	private void releaseFrames()
 	{
-		System.out.println(config_.getRank() + ": " + msg);
+		int limit = awaitingMessages_.isEmpty() ? frame_ : awaitingMessages_.first() - 1;
+		if(debug_) print("Releasing framelock!");
+		if(limit > 0)
+			frameLock_.release(limit);
 	}
 	
-	public boolean getDebug()
+	private static int readInt(byte[] data, int offset)
 	{
-		return debug_;
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+				| ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
 	}
 	
-	// the sketch requested that the attributes be sent to all other processes
-	// note, interaction intended to occur on leader process, for other interaction use
-	// asynchronous client
 	/**
-	 * Broadcasts the object(s) to all client processes.
-	 * @param attribute The object to broadcast. Can be casted to any object.
+	 * Called by the network threads for every frame event. Delivers each frame event once and in order,
+	 * asking the leader to resend frame events that were lost on the multicast path.
 	 */
-	public void broadcast(Object attribute)
+	synchronized void frameEventReceived(Command c)
 	{
-		sendAttributes_ = true;
-		attribute_ = attribute;
+		// already delivered, through the other path
+		if(c.frame <= frame_)
+			return;
+		
+		// an earlier frame event is missing, keep this one until the gap is repaired
+		if(c.frame > frame_ + 1)
+		{
+			if(!outOfOrder_.containsKey(c.frame))
+			{
+				outOfOrder_.put(c.frame, c.encode());
+				for(int f = frame_ + 1; f < c.frame; f++)
+					if(!outOfOrder_.containsKey(f))
+						requestRepair(f);
+			}
+			return;
+		}
+		
+		handleFrameEvent(c);
+		
+		byte[] next;
+		while((next = outOfOrder_.remove(frame_ + 1)) != null)
+		{
+			try {
+				buffered_.read(next, 0, next.length);
+				handleFrameEvent(buffered_);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 	
-	// returns true if the last FE message was received with non-null atts
 	/**
-	 * Determines if a message has been received since last frame draw.
-	 * @return True if a message has been received since last frame draw.
+	 * Called by the multicast thread when no datagram arrived for a while. If we are waiting for the next
+	 * frame event its datagram may have been lost, so ask for it over TCP. Nothing shows whether the leader
+	 * issued it at all, a paused leader looks the same, so the requests back off exponentially until a frame
+	 * event arrives. A lost frame event followed by another one is repaired right away in frameEventReceived().
 	 */
-	public boolean messageReceived()
+	synchronized void frameEventTimeout()
 	{
-		return receivedAttributes_;
+		int expected = frame_ + 1;
+		if(drawFrame_ < frame_)
+			return;
+		
+		if(expected != idleFrame_)
+		{
+			idleFrame_ = expected;
+			idleTimeouts_ = 0;
+		}
+		
+		// request after 1, 2, 4, ... timeouts, then every MAX_REPAIR_BACKOFF timeouts
+		idleTimeouts_++;
+		if(idleTimeouts_ <= MAX_REPAIR_BACKOFF ? Integer.bitCount(idleTimeouts_) == 1 : idleTimeouts_ % MAX_REPAIR_BACKOFF == 0)
+			requestRepair(expected);
 	}
 	
-	// returns the attributes that were received from the leader
 	/**
-	 * If a message has been received, returns the message.
-	 * @return The message that has been received. Cast to the desired object.
+	 * Gets a recently issued frame event so it can be resent to a follower, or null if it is not available.
 	 */
-	public Object getMessage()
+	byte[] repairFrame(int frame)
 	{
-		if(receivedAttributes_)
+		synchronized(history_)
 		{
-			receivedAttributes_ = false;
-			return attribute_;
+			int slot = frame % REPAIR_HISTORY;
+			if(history_[slot] != null && historyFrames_[slot] == frame)
+				return history_[slot];
 		}
-		else
+		return null;
+	}
+	
+	// asks the leader to resend a frame event
+	private void requestRepair(int frame)
+	{
+		if(debug_) print("Requesting repair of frame " + frame);
+		
+		synchronized(upstreamLock_)
 		{
-			print("No attributes were received! Check w/ messageReceived() first!");
-			return null;
-		}		
+			repair_.frame = frame;
+			try {
+				repair_.write(dos_);
+				dos_.flush();
+			} catch (IOException e) {
+				System.out.println("Unable to write to server! Server disconnected.");
+				System.exit(-1);
+			}
+		}
+	}
+	
+	// handles the next frame event in sequence, releases the frameLock
+	private void handleFrameEvent(Command c)
+	{
+		// received a frame event command from server, unlock framelock object
+		if(debug_) print("Received FE for frame " + c.frame);
+		
+		// a relay passes the frame event on to its children before handling it
+		if(transport_ != null)
+			transport_.broadcast(c.encode());
+		
+		// receives the messages if the payload section is not empty, they are delivered when the frame is drawn
+		if(c.hasPayload())
+		{
+			try {
+				compressor_.decompress(c);
+				
+				FramePayload payload = new FramePayload();
+				payload.frame = c.frame;
+				
+				// the time and seed of the frame come first
+				int offset = 0;
+				if((c.flags & Command.STAMPED) != 0)
+				{
+					payload.stamped = true;
+					payload.time = Command.readLong(c.payload, offset);
+					offset += 8;
+					if((c.flags & Command.SEEDED) != 0)
+					{
+						payload.seed = Command.readLong(c.payload, offset);
+						offset += 8;
+					}
+				}
+				
+				// then the ranks that get their own messages this frame
+				if((c.flags & Command.TARGETS) != 0)
+				{
+					int count = ((c.payload[offset] & 0xFF) << 8) | (c.payload[offset + 1] & 0xFF);
+					for(int i = 0; i < count; i++)
+					{
+						if(readInt(c.payload, offset + 2 + 4 * i) == config_.getRank() && !arrivedMessages_.remove(c.frame))
+							awaitingMessages_.add(c.frame);
+					}
+					offset += 2 + 4 * count;
+				}
+				
+				if(c.payloadLength > offset)
+					received_.decode(c.payload, offset, c.payloadLength - offset, payload.messages);
+				pending_.add(payload);
+			} catch (Exception e) {
+				System.out.println("Unable to read messages from leader!");
+				e.printStackTrace();
+			}
+		}
+		
+		frame_ = c.frame;
+		/*
+		// gets mouse and keyboard events from head process
+		if(c.k != null)
+		{
+			pApplet_.keyEvent = c.k;
+		}
+		if(c.m != null)
+		{
+			pApplet_.mouseEvent = c.m;
+		}
+		*/
+		// release the framelock, unless messages for this frame are still on their way
+		releaseFrames();
+	}
+	
+	// stamps the next frame with the time and a seed, our own sketch gets the stamp through pending_ (leader)
+	private FramePayload stampFrame(int frame)
+	{
+		FramePayload stamp = new FramePayload();
+		stamp.frame = frame;
+		stamp.stamped = true;
+		stamp.time = getLeaderMicros();
+		if(isSeeded())
+			stamp.seed = seeds_.nextLong();
+		
+		// the inputs of a lockstep simulation are sent with the frame they are stepped in, on every rank
+		if(lockstep_ != null)
+		{
+			ArrayList<Object> inputs = lockstep_.takeInputs();
+			for(int i = 0; i < inputs.size(); i++)
+			{
+				stamp.messages.add(new Message(Lockstep.INPUT_CHANNEL, DeliveryPolicy.QUEUE, inputs.get(i)));
+				outbox_.post(Lockstep.INPUT_CHANNEL, inputs.get(i), DeliveryPolicy.QUEUE);
+			}
+		}
+		
+		// interpolated channels only send their newest state once per tick
+		synchronized(held_)
+		{
+			long interval = config_.getTickRate() > 0 ? (long) (1e6 / config_.getTickRate()) : 0;
+			if(!held_.isEmpty() && (lastTick_ < 0 || stamp.time - lastTick_ >= interval))
+			{
+				for(Map.Entry<String, Object> state : held_.entrySet())
+				{
+					stamp.messages.add(new Message(state.getKey(), DeliveryPolicy.LATEST, state.getValue()));
+					outbox_.post(state.getKey(), state.getValue(), DeliveryPolicy.LATEST);
+				}
+				held_.clear();
+				lastTick_ = stamp.time;
+			}
+		}
+		pending_.add(stamp);
+		return stamp;
+	}
+	
+	// frames carry a seed when the sketch asked for one, or when a lockstep simulation needs it
+	private boolean isSeeded()
+	{
+		return config_.isFrameSeed() || lockstep_ != null;
+	}
+	
+	private void broadcastFE(FramePayload stamp)
+	{
+		// create frame event command
+		Command command = new Command(Command.FRAME_EVENT, ++frame_);
+		
+		// set keyboard and mouse
+		//command.k = keyEvent_;
+		//command.m = mouseEvent_;
+		
+		// every message sent since the last frame event goes out in one batch, which also clears it
+		try {
+			// entities that moved or changed become messages for the followers showing them
+			synchronized(this)
+			{
+				if(entities_ != null)
+					entities_.flush(this);
+			}
+			
+			byte[] messages = outbox_.encode();
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream payload = new DataOutputStream(bytes);
+			
+			// the time and seed of the frame come first
+			payload.writeLong(stamp.time);
+			command.flags |= Command.STAMPED;
+			if(isSeeded())
+			{
+				payload.writeLong(stamp.seed);
+				command.flags |= Command.SEEDED;
+			}
+			
+			// messages for single ranks go ahead of the frame event, which lists the ranks to wait for them
+			int[] targets = sendTargeted(command.frame);
+			if(targets.length > 0)
+			{
+				payload.writeShort(targets.length);
+				for(int i = 0; i < targets.length; i++)
+					payload.writeInt(targets[i]);
+				command.flags |= Command.TARGETS;
+			}
+			
+			if(messages != null)
+				payload.write(messages);
+			payload.flush();
+			command.setPayload(bytes.toByteArray());
+			compressor_.compress(command);
+		} catch (IOException e) {
+			System.out.println("Unable to serialize messages, they will not be sent!");
+			e.printStackTrace();
+		}
+		
+		// encode once, the transport writes the same bytes to every follower
+		byte[] encoded = command.encode();
+		synchronized(history_)
+		{
+			history_[command.frame % REPAIR_HISTORY] = encoded;
+			historyFrames_[command.frame % REPAIR_HISTORY] = command.frame;
+		}
+		
+		// small frame events go to the multicast group once, children on our own host still get them directly
+		if(multicast_ != null && encoded.length <= MulticastChannel.MAX_DATAGRAM)
+		{
+			multicast_.send(encoded);
+			if(sharedTransport_ != null)
+				sharedTransport_.broadcast(encoded);
+		}
+		else
+			transport_.broadcast(encoded);
+		
+		// set events to null so they are not resent
+		//keyEvent_ = null;
+		//mouseEvent_ = null;
+	}
+	
+	// sends the messages for single ranks down the tree, returns the ranks that got any
+	private int[] sendTargeted(int frame) throws IOException
+	{
+		synchronized(targeted_)
+		{
+			ArrayList<Integer> ranks = new ArrayList<Integer>();
+			for(Integer rank : targeted_.keySet())
+			{
+				byte[] messages = targeted_.get(rank).encode();
+				if(messages == null)
+					continue;
+				
+				Command command = new Command(Command.MESSAGE, frame);
+				byte[] payload = new byte[4 + messages.length];
+				payload[0] = (byte) (rank >>> 24);
+				payload[1] = (byte) (rank >>> 16);
+				payload[2] = (byte) (rank >>> 8);
+				payload[3] = (byte) (int) rank;
+				System.arraycopy(messages, 0, payload, 4, messages.length);
+				command.setPayload(payload);
+				
+				if(transport_.send(config_.getNextHop(rank), command.encode()))
+					ranks.add(rank);
+				else
+					System.out.println("No route to rank " + rank + ", messages dropped.");
+			}
+			
+			int[] result = new int[ranks.size()];
+			for(int i = 0; i < result.length; i++)
+				result[i] = ranks.get(i);
+			return result;
+		}
+	}
+	
+	// sends msg to leader indicating the frame has been drawn, a relay waits for its children first
+	private void endFrame()
+	{
+		// what the sketch sent to the leader during this frame rides on the EF message
+		byte[] payload = null;
+		try {
+			payload = upstream_.encode(codecs_);
+		} catch (IOException e) {
+			System.out.println("Unable to serialize messages to the leader, they will not be sent!");
+			e.printStackTrace();
+		}
+		
+		if(config_.isRelay())
+			endFrameReceived(drawFrame_, payload, 0, payload == null ? 0 : payload.length);
+		else
+			sendEndFrame(drawFrame_, payload);
+	}
+	
+	/**
+	 * Called by the transport when a child has drawn a frame, with what its subtree sent upstream.
+	 */
+	void endFrameReceived(int frame, byte[] data, int offset, int length)
+	{
+		if(length > 0)
+		{
+			UpstreamBatch batch;
+			synchronized(collected_)
+			{
+				batch = collected_.get(frame);
+				if(batch == null)
+				{
+					batch = new UpstreamBatch();
+					collected_.put(frame, batch);
+				}
+			}
+			try {
+				batch.merge(data, offset, length, codecs_, combiners_);
+			} catch (Exception e) {
+				System.out.println("Unable to read messages from a follower!");
+				e.printStackTrace();
+			}
+		}
+		
+		// the frame is published only after its upstream messages were delivered, so the leader's next frame
+		// event carries the allreduce results of this frame
+		if(!barrier_.countDown(frame))
+			return;
+		
+		UpstreamBatch batch;
+		synchronized(collected_)
+		{
+			batch = collected_.remove(frame);
+		}
+		
+		// a relay acknowledges upstream once the whole subtree has drawn the frame
+		if(config_.isRelay())
+		{
+			byte[] payload = null;
+			try {
+				if(batch != null)
+					payload = batch.encode(codecs_);
+			} catch (IOException e) {
+				System.out.println("Unable to serialize messages to the leader, they will not be sent!");
+				e.printStackTrace();
+			}
+			sendEndFrame(frame, payload);
+		}
+		else if(config_.isLeader() && batch != null)
+			deliverUpstream(frame, batch);
+		
+		barrier_.complete(frame);
+	}
+	
+	// hands what the followers sent during a frame to the leader's sketch, allreduce results also go back down
+	private void deliverUpstream(int frame, UpstreamBatch batch)
+	{
+		FramePayload payload = new FramePayload();
+		payload.frame = frame;
+		payload.messages.addAll(batch.messages_);
+		for(Map.Entry<String, HashMap<Integer, Object>> gather : batch.gathers_.entrySet())
+			payload.messages.add(new Message(gather.getKey(), DeliveryPolicy.LATEST, gather.getValue()));
+		for(Map.Entry<String, UpstreamBatch.Reduction> reduction : batch.reductions_.entrySet())
+		{
+			payload.messages.add(new Message(reduction.getKey(), DeliveryPolicy.LATEST, reduction.getValue().value));
+			if(reduction.getValue().all)
+				outbox_.post(reduction.getKey(), reduction.getValue().value, DeliveryPolicy.LATEST);
+		}
+		pending_.add(payload);
+	}
+	
+	// writes an end-of-frame message to the parent
+	private void sendEndFrame(int frame, byte[] payload)
+	{
+		synchronized(upstreamLock_)
+		{
+			endFrame_.frame = frame;
+			endFrame_.setPayload(payload);
+			
+			try {
+				endFrame_.write(dos_);
+				dos_.flush();
+			} catch (IOException e) {
+				System.out.println("Unable to write to server! Server disconnected.");
+				System.exit(-1);
+			}
+		}
+	}
+	
+	/**
+	 * Queues a line for the log thread. Lines are dropped when the log falls behind, use printError() for
+	 * anything that must be seen.
+	 */
+	public void print(String msg)
+	{
+		log_.offer(msg);
+	}
+	
+	/**
+	 * Writes a line to the console and the log file right away, after the lines already queued.
+	 */
+	public void printError(String msg)
+	{
+		LogAggregator.get().logNow(log_, msg);
+	}
+	
+	public boolean getDebug()
+	{
+		return debug_;
+	}
+	
+	/**
+	 * Gets the number of the frame being drawn, the same on every rank.
+	 */
+	public int getFrameNumber()
+	{
+		return drawFrame_;
+	}
+	
+	/**
+	 * Gets the time the leader issued the frame being drawn, in milliseconds of leader time. Animations driven
+	 * by it stay in step on every tile.
+	 */
+	public long getFrameMillis()
+	{
+		return frameMicros_ / 1000;
+	}
+	
+	public long getFrameMicros()
+	{
+		return frameMicros_;
+	}
+	
+	/**
+	 * Gets the seed of the frame being drawn, the same on every rank. Zero unless frameSeed is enabled in the
+	 * configuration, which also seeds random() and noise() with it before every frame.
+	 */
+	public long getFrameSeed()
+	{
+		return frameSeed_;
+	}
+	
+	/**
+	 * Gets the current leader time in microseconds, estimated from the clock offset on a follower.
+	 */
+	public long getLeaderMicros()
+	{
+		if(clock_ == null)
+			return ClockSync.localMicros() - startMicros_;
+		return clock_.toLeader(ClockSync.localMicros());
+	}
+	
+	/**
+	 * Gets the estimated offset of the leader's clock from ours in microseconds, and the round trip it was
+	 * measured with. Both are 0 on the leader.
+	 */
+	public long getClockOffset()
+	{
+		return clock_ == null ? 0 : clock_.getOffset();
+	}
+	
+	public long getClockRoundTrip()
+	{
+		return clock_ == null ? 0 : clock_.getRoundTrip();
+	}
+	
+	/**
+	 * Gets the average compression ratio of the FE payloads compressed so far (leader), 1 if none was.
+	 */
+	public float getCompressionRatio()
+	{
+		return compressor_.getRatio();
+	}
+	
+	/**
+	 * Gets the time spent compressing (leader) or decompressing (follower) FE payloads, per compressed payload, in
+	 * milliseconds.
+	 */
+	public float getCompressionTime()
+	{
+		if(config_.isLeader())
+			return compressor_.getCompressed() == 0 ? 0 : compressor_.getCompressNanos() / 1e6f / compressor_.getCompressed();
+		return compressor_.getDecompressed() == 0 ? 0 : compressor_.getDecompressNanos() / 1e6f / compressor_.getDecompressed();
+	}
+	
+	// the sketch requested that the attributes be sent to all other processes
+	// note, interaction intended to occur on leader process, for other interaction use
+	// asynchronous client
+	/**
+	 * Broadcasts the object(s) to all client processes.
+	 * @param attribute The object to broadcast. Can be casted to any object.
+	 */
+	public void broadcast(Object attribute)
+	{
+		broadcast(DEFAULT_CHANNEL, attribute);
+	}
+	
+	/**
+	 * Broadcasts the object to all client processes on a named channel. All messages sent during a frame
+	 * are batched into the next frame event.
+	 * @param channel The name of the channel.
+	 * @param message The object to broadcast.
+	 */
+	public void broadcast(String channel, Object message)
+	{
+		if(interpolators_.containsKey(channel))
+		{
+			synchronized(held_)
+			{
+				held_.put(channel, message);
+			}
+			return;
+		}
+		
+		DeliveryPolicy policy = channelPolicies_.get(channel);
+		outbox_.post(channel, message, policy == null ? DeliveryPolicy.LATEST : policy);
+	}
+	
+	/**
+	 * Sends a message on a channel to one follower only. It is delivered with the next frame, like broadcast
+	 * messages. Called on the leader.
+	 * @param rank The rank of the follower.
+	 * @param channel The name of the channel.
+	 * @param message The object to send.
+	 */
+	public void send(int rank, String channel, Object message)
+	{
+		DeliveryPolicy policy = channelPolicies_.get(channel);
+		synchronized(targeted_)
+		{
+			MessageBatch batch = targeted_.get(rank);
+			if(batch == null)
+			{
+				batch = new MessageBatch(codecs_);
+				targeted_.put(rank, batch);
+			}
+			batch.post(channel, message, policy == null ? DeliveryPolicy.LATEST : policy);
+		}
+	}
+	
+	/**
+	 * Sends a message on a channel to several followers.
+	 * @param ranks The ranks of the followers.
+	 * @param channel The name of the channel.
+	 * @param message The object to send.
+	 */
+	public void send(int[] ranks, String channel, Object message)
+	{
+		for(int i = 0; i < ranks.length; i++)
+			send(ranks[i], channel, message);
+	}
+	
+	/**
+	 * Sends a message on a channel to the followers whose tiles intersect a rectangle in master space.
+	 * @param x The left edge of the rectangle.
+	 * @param y The top edge of the rectangle.
+	 * @param w The width of the rectangle.
+	 * @param h The height of the rectangle.
+	 * @param channel The name of the channel.
+	 * @param message The object to send.
+	 */
+	public void sendToRegion(float x, float y, float w, float h, String channel, Object message)
+	{
+		send(config_.getRanksIn(x, y, w, h), channel, message);
+	}
+	
+	/**
+	 * Sends a message on a channel to the leader with the end-of-frame message of the frame being drawn. The
+	 * leader reads it with getMessage(channel) before its next frame. Called on a follower.
+	 * @param channel The name of the channel.
+	 * @param message The object to send.
+	 */
+	public void sendToLeader(String channel, Object message)
+	{
+		DeliveryPolicy policy = channelPolicies_.get(channel);
+		upstream_.post(channel, message, policy == null ? DeliveryPolicy.LATEST : policy);
+	}
+	
+	/**
+	 * Contributes a value to a gather. Once every follower has drawn the frame, the leader reads the values of
+	 * the followers that contributed as a map from rank to value with getGathered(name).
+	 * @param name The name of the gather.
+	 * @param value This follower's value.
+	 */
+	public void gather(String name, Object value)
+	{
+		upstream_.gather(name, config_.getRank(), value);
+	}
+	
+	/**
+	 * Gets the latest completed gather, or null if none is waiting. Called on the leader.
+	 * @param name The name of the gather.
+	 * @return The values by rank.
+	 */
+	@SuppressWarnings("unchecked")
+	public HashMap<Integer, Object> getGathered(String name)
+	{
+		return (HashMap<Integer, Object>) inbox_.poll(name);
+	}
+	
+	/**
+	 * Contributes a value to a reduction. Relays combine the values of their subtree before passing them on,
+	 * the leader reads the result of the frame with getMessage(name).
+	 * @param name The name of the reduction.
+	 * @param value This follower's value, must not be modified afterwards.
+	 * @param combiner The name of the combiner: "sum", "min", "max" or one registered with registerCombiner().
+	 */
+	public void reduce(String name, Object value, String combiner)
+	{
+		upstream_.reduce(name, combiner, combiner(combiner), false, value, 1);
+	}
+	
+	/**
+	 * Like reduce(), but the result is also broadcast with the next frame event, every follower reads it with
+	 * getMessage(name).
+	 */
+	public void allreduce(String name, Object value, String combiner)
+	{
+		upstream_.reduce(name, combiner, combiner(combiner), true, value, 1);
+	}
+	
+	private Combiner combiner(String name)
+	{
+		Combiner combiner = combiners_.get(name);
+		if(combiner == null)
+			throw new IllegalArgumentException("Unknown combiner: " + name);
+		return combiner;
+	}
+	
+	/**
+	 * Registers a combiner for reductions. Register it on every process, relays and the leader need it too.
+	 * @param name The name used in reduce() and allreduce().
+	 * @param combiner The combiner.
+	 */
+	public void registerCombiner(String name, Combiner combiner)
+	{
+		combiners_.put(name, combiner);
+	}
+	
+	/**
+	 * Makes a channel interpolated: the leader sends its newest state at most tickRate times per second, and
+	 * every rank draws a blend of the last two states at the frame time with getInterpolated(), so animation
+	 * stays smooth at the full frame rate. Floats, doubles, their arrays, PVector and PMatrix3D are blended
+	 * element-wise. Set it in setup() on every process.
+	 * @param channel The name of the channel.
+	 */
+	public void setChannelInterpolated(String channel)
+	{
+		setChannelInterpolated(channel, Interpolator.NUMERIC);
+	}
+	
+	/**
+	 * Makes a channel interpolated with a blend of its own, for example for camera state.
+	 * @param channel The name of the channel.
+	 * @param lerp Blends two states.
+	 */
+	public void setChannelInterpolated(String channel, Lerp lerp)
+	{
+		interpolators_.put(channel, new Interpolator(lerp));
+	}
+	
+	/**
+	 * Gets the state of an interpolated channel to draw in this frame, or null before the first state arrived.
+	 * @param channel The name of the channel.
+	 */
+	public Object getInterpolated(String channel)
+	{
+		Interpolator interpolator = interpolators_.get(channel);
+		return interpolator == null ? null : interpolator.sample(frameMicros_);
+	}
+	
+	/**
+	 * Gets a cache that outlives the session when the rank runs in a FollowerAgent, e.g. to keep downloaded or
+	 * decoded content for the next session. Outside an agent it only lasts as long as this JVM. Store only JDK
+	 * types such as byte[], int[] or String: the sketch's own classes are loaded again by every session.
+	 * @return The cache, shared by every session of the agent.
+	 */
+	public Map<String, Object> getAgentCache()
+	{
+		return Configuration.getAgentCache();
+	}
+	
+	/**
+	 * Runs a simulation in lockstep: the leader sends only the inputs of each frame, given with input(), and every
+	 * rank steps its own copy of the simulation with them and the frame's seed before the frame is drawn.
+	 * Divergent ranks are detected by comparing state hashes every lockstepHashInterval frames, and resynced
+	 * from a snapshot of the leader's state. Set it in setup() on every process, before start().
+	 * @param simulation The simulation.
+	 */
+	public void setSimulation(Simulation simulation)
+	{
+		lockstep_ = new Lockstep(simulation, config_.getLockstepHashInterval());
+	}
+	
+	/**
+	 * Sends an input to the lockstep simulation, it is stepped with the next frame on every rank. Called on the
+	 * leader.
+	 * @param input The input.
+	 * @throws IllegalStateException if no simulation was set with setSimulation().
+	 */
+	public void input(Object input)
+	{
+		Lockstep lockstep = lockstep_;
+		if(lockstep == null)
+			throw new IllegalStateException("input() needs a simulation, call setSimulation() in setup() first");
+		lockstep.input(input);
+	}
+	
+	/**
+	 * Gets the entity registry. Entities put into it on the leader are sent only to the followers whose tiles
+	 * they overlap, see setEntityListener().
+	 * @return The registry.
+	 */
+	public synchronized EntityRegistry getEntities()
+	{
+		if(entities_ == null)
+			entities_ = new EntityRegistry(new TileGrid(config_));
+		return entities_;
+	}
+	
+	/**
+	 * Sets the listener that receives the events of entities entering, changing in and leaving this follower's
+	 * tiles, called before the frame they belong to is drawn. Without a listener the events can be read as
+	 * EntityEvent[] messages with getMessage(EntityRegistry.CHANNEL).
+	 * @param listener The listener.
+	 */
+	public void setEntityListener(EntityListener listener)
+	{
+		entityListener_ = listener;
+	}
+	
+	/**
+	 * Sets how messages on a channel are delivered. LATEST (the default) only keeps the newest unread message,
+	 * QUEUE keeps every message in order. Set on the leader, followers apply the policy sent with each message.
+	 * @param channel The name of the channel.
+	 * @param policy The delivery policy.
+	 */
+	public void setChannelPolicy(String channel, DeliveryPolicy policy)
+	{
+		channelPolicies_.put(channel, policy);
+	}
+	
+	/**
+	 * Enables delta mode on a channel: each message only carries the bytes that changed since the previous
+	 * one, with a full keyframe every keyframeInterval messages. Meant for large state that is broadcast every
+	 * frame but changes little. Set on the leader. An unchanged value is not resent on a LATEST channel, every
+	 * message of a QUEUE channel is still delivered.
+	 * @param channel The name of the channel.
+	 * @param delta True to send deltas.
+	 */
+	public void setChannelDelta(String channel, boolean delta)
+	{
+		outbox_.setDelta(channel, delta);
+	}
+	
+	/**
+	 * Registers a compact codec for messages of a type, which are otherwise sent with Java serialization.
+	 * Strings, boxed primitives, primitive arrays, PVector and PMatrix3D already have one. Register codecs in
+	 * setup(), every process must register the same codecs in the same order.
+	 * @param type The exact class of the messages.
+	 * @param codec The codec.
+	 */
+	public <T> void registerCodec(Class<T> type, Codec<T> codec)
+	{
+		codecs_.register(type, codec);
+	}
+	
+	// returns true if the last FE message was received with non-null atts
+	/**
+	 * Determines if a message has been received since last frame draw.
+	 * @return True if a message has been received since last frame draw.
+	 */
+	public boolean messageReceived()
+	{
+		return inbox_.received(DEFAULT_CHANNEL);
+	}
+	
+	/**
+	 * Determines if an unread message is waiting on a named channel.
+	 * @param channel The name of the channel.
+	 * @return True if getMessage(channel) will return a message.
+	 */
+	public boolean messageReceived(String channel)
+	{
+		return inbox_.received(channel);
+	}
+	
+	// returns the attributes that were received from the leader
+	/**
+	 * If a message has been received, returns the message.
+	 * @return The message that has been received. Cast to the desired object.
+	 */
+	public Object getMessage()
+	{
+		if(inbox_.received(DEFAULT_CHANNEL))
+		{
+			return inbox_.poll(DEFAULT_CHANNEL);
+		}
+		else
+		{
+			printError("No attributes were received! Check w/ messageReceived() first!");
+			return null;
+		}		
+	}
+	
+	/**
+	 * Takes the next unread message of a named channel. For a QUEUE channel, call repeatedly until it
+	 * returns null to read every message in order.
+	 * @param channel The name of the channel.
+	 * @return The message, or null if none is waiting.
+	 */
+	public Object getMessage(String channel)
+	{
+		return inbox_.poll(channel);
+	}
+	
+	/**
+	 * Takes the next unread message of a named channel as the given type.
+	 * @param channel The name of the channel.
+	 * @param type The class of the message.
+	 * @return The message, or null if none is waiting.
+	 */
+	public <T> T getMessage(String channel, Class<T> type)
+	{
+		return type.cast(inbox_.poll(channel));
+	}
+	
+	/**
+	 * Gets the number of unread messages on a named channel.
+	 */
+	public int messageCount(String channel)
+	{
+		return inbox_.size(channel);
+	}
+	
+	/**
+	 * Streams a large byte array to all client processes on the bulk channel. Frame events keep flowing while
+	 * the transfer runs. Requires a bulkPort in the configuration.
+	 * @param name A name the followers can identify the transfer by.
+	 * @param data The data to send.
+	 * @return The transfer, which completes once every follower has received it. Null if the bulk channel is disabled.
+	 */
+	public BulkTransfer sendBulk(String name, byte[] data)
+	{
+		return sendBulk(new BulkTransfer(name, data));
+	}
+	
+	/**
+	 * Streams a file to all client processes on the bulk channel. Followers receive a temporary copy.
+	 * @param name A name the followers can identify the transfer by.
+	 * @param file The file to send.
+	 * @return The transfer, which completes once every follower has received it. Null if the bulk channel is disabled.
+	 */
+	public BulkTransfer sendBulk(String name, File file)
+	{
+		return sendBulk(new BulkTransfer(name, file));
+	}
+	
+	/**
+	 * Serializes an object and streams it to all client processes on the bulk channel.
+	 * @param name A name the followers can identify the transfer by.
+	 * @param object The object to send, read it back with BulkTransfer.getObject().
+	 * @return The transfer, which completes once every follower has received it. Null if the bulk channel is disabled.
+	 */
+	public BulkTransfer sendBulk(String name, Object object)
+	{
+		try {
+			return sendBulk(new BulkTransfer(name, Command.serialize(object)));
+		} catch (IOException e) {
+			System.out.println("Unable to serialize bulk object " + name + "!");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	private BulkTransfer sendBulk(BulkTransfer transfer)
+	{
+		if(bulkSender_ == null)
+		{
+			printError("The bulk channel is disabled, set bulkPort in the configuration!");
+			return null;
+		}
+		bulkSender_.send(transfer);
+		return transfer;
+	}
+	
+	/**
+	 * Gets the next bulk transfer this follower has received completely.
+	 * @return The transfer, or null if none is waiting.
+	 */
+	public BulkTransfer nextBulk()
+	{
+		if(bulkReceiver_ == null)
+			return null;
+		return bulkReceiver_.received_.poll();
+	}
+	
+	/**
+	 * Sets a listener that is called from the bulk channel thread whenever this follower has received a transfer.
+	 */
+	public void setBulkListener(BulkListener listener)
+	{
+		if(bulkReceiver_ != null)
+			bulkReceiver_.setListener(listener);
 	}
 	
 	public void shutDown() throws IOException
@@ -0,0 +1,285 @@
+package mpe;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking transport where a single selector thread serves every follower. End-of-frame messages arrive
+ * at the frame barrier from the selector thread, so the per-frame scheduling cost does not grow with the
+ * number of followers.
+ *
+ */
+public class SelectorTransport extends Thread implements Transport {
+
+	// per follower state, attached to its selection key
+	static class Peer {
+		SocketChannel channel;
+		SelectionKey key;
+		
+		// the rank of the follower, from its HELLO
+		int rank;
+
+		// partially read commands
+		ByteBuffer in = ByteBuffer.allocate(4096);
+
+		// encoded commands not yet fully written
+		ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	Selector selector_;
+	ServerSocketChannel listener_;
+	Vector<Peer> peers_;
+
+	FollowerState followerState_;
+
+	Process process_;
+
+	// set when broadcast() queued data for the selector thread
+	private volatile boolean pendingWrites_ = false;
+
+	private volatile boolean running_ = true;
+
+	public SelectorTransport(FollowerState fs, Process p)
+	{
+		super("mpe-selector");
+		setDaemon(true);
+		peers_ = new Vector<Peer>();
+		followerState_ = fs;
+		process_ = p;
+	}
+
+	public void connect(int port, int numFollowers) throws IOException
+	{
+		selector_ = Selector.open();
+		listener_ = ServerSocketChannel.open();
+		listener_.socket().bind(new InetSocketAddress(port));
+
+		// accept on its own thread, and handshake each connection on another, so a slow or misconfigured
+		// follower never holds up the others
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while(listener_.isOpen())
+				{
+					try {
+						final SocketChannel channel = listener_.accept();
+
+						// disable Nagle's algorithm, otherwise we get TCP delays of ~40ms
+						channel.socket().setTcpNoDelay(true);
+
+						if(process_.getDebug()) process_.print("Received a client connection: " + channel.socket().getInetAddress());
+
+						new Thread(new Runnable() {
+							public void run() {
+								handshake(channel);
+							}
+						}, "mpe-handshake").start();
+					} catch (IOException e) {
+						if(listener_.isOpen())
+							System.out.println("Unable to accept connection!");
+					}
+				}
+			}
+		}, "mpe-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		synchronized(peers_)
+		{
+			while(peers_.size() < numFollowers)
+			{
+				try {
+					peers_.wait();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		listener_.close();
+	}
+
+	// admits or refuses one follower, the handshake runs while the channel is still blocking
+	private void handshake(SocketChannel channel)
+	{
+		try {
+			channel.socket().setSoTimeout(Handshake.TIMEOUT);
+			int rank = Handshake.accept(new DataInputStream(channel.socket().getInputStream()),
+					new DataOutputStream(channel.socket().getOutputStream()), process_);
+			channel.configureBlocking(false);
+
+			Peer peer = new Peer();
+			peer.rank = rank;
+			peer.channel = channel;
+
+			synchronized(peers_)
+			{
+				peer.key = channel.register(selector_, SelectionKey.OP_READ, peer);
+				peers_.add(peer);
+				followerState_.incrementConnected();
+				peers_.notifyAll();
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to accept connection from " + channel.socket().getInetAddress() + ": " + e.getMessage());
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	public void broadcast(byte[] encoded)
+	{
+		for(int i = 0; i < peers_.size(); i++)
+			peers_.elementAt(i).out.add(ByteBuffer.wrap(encoded));
+
+		pendingWrites_ = true;
+		selector_.wakeup();
+	}
+
+	public boolean send(int rank, byte[] encoded)
+	{
+		for(int i = 0; i < peers_.size(); i++)
+		{
+			if(peers_.elementAt(i).rank == rank)
+			{
+				peers_.elementAt(i).out.add(ByteBuffer.wrap(encoded));
+				pendingWrites_ = true;
+				selector_.wakeup();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public void shutDown()
+	{
+		running_ = false;
+		selector_.wakeup();
+	}
+
+	public void run()
+	{
+		try {
+			while(running_)
+			{
+				selector_.select();
+
+				if(pendingWrites_)
+				{
+					pendingWrites_ = false;
+					for(int i = 0; i < peers_.size(); i++)
+						write(peers_.elementAt(i));
+				}
+
+				Iterator<SelectionKey> keys = selector_.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					Peer peer = (Peer) key.attachment();
+					if(key.isReadable())
+						read(peer);
+					if(key.isValid() && key.isWritable())
+						write(peer);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Client disconnected!");
+			System.exit(-1);
+		} finally {
+			close();
+		}
+	}
+
+	// writes as much queued data as the socket accepts, waiting for OP_WRITE on the rest
+	private void write(Peer peer) throws IOException
+	{
+		ByteBuffer buffer;
+		while((buffer = peer.out.peek()) != null)
+		{
+			peer.channel.write(buffer);
+			if(buffer.hasRemaining())
+			{
+				peer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			peer.out.poll();
+		}
+		peer.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	// reads available bytes and handles every complete command
+	private void read(Peer peer) throws IOException
+	{
+		if(peer.channel.read(peer.in) < 0)
+			throw new IOException("Remote end hung up");
+
+		ByteBuffer in = peer.in;
+		in.flip();
+		while(in.remaining() >= 4)
+		{
+			int length = in.getInt(in.position());
+			if(length < Command.HEADER_SIZE)
+				throw new IOException("Malformed command, length: " + length);
+			if(in.remaining() < 4 + length)
+				break;
+
+			byte opcode = in.get(in.position() + 4);
+			int frame = in.getInt(in.position() + 6);
+			int payload = in.arrayOffset() + in.position() + 4 + Command.HEADER_SIZE;
+			in.position(in.position() + 4 + length);
+
+			if(opcode == Command.END_FRAME)
+			{
+				if(process_.getDebug()) process_.print("Received EF for frame " + frame);
+				process_.endFrameReceived(frame, in.array(), payload, length - Command.HEADER_SIZE);
+			}
+			else if(opcode == Command.PING)
+			{
+				peer.out.add(ByteBuffer.wrap(process_.pong(frame, in.getLong(payload - in.arrayOffset()))));
+				write(peer);
+			}
+			else if(opcode == Command.REPAIR)
+			{
+				byte[] encoded = process_.repairFrame(frame);
+				if(encoded != null)
+				{
+					peer.out.add(ByteBuffer.wrap(encoded));
+					write(peer);
+				}
+			}
+		}
+		in.compact();
+
+		// grow the buffer if a single command does not fit
+		if(!in.hasRemaining())
+		{
+			ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+			in.flip();
+			larger.put(in);
+			peer.in = larger;
+		}
+	}
+
+	private void close()
+	{
+		try {
+			for(int i = 0; i < peers_.size(); i++)
+				peers_.elementAt(i).channel.close();
+			listener_.close();
+			selector_.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package mpe;
+
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * Transport for children running on the same host as their parent. Each child gets a SharedRing file instead of
+ * a socket, the Connection threads read and write the rings through streams.
+ *
+ */
+public class SharedMemoryTransport implements Transport {
+	
+	// the ranks of the children on this host
+	int[] ranks_;
+	
+	Vector<SharedRing> rings_;
+	Vector<Connection> clients_;
+	
+	FollowerState followerState_;
+	
+	Process process_;
+	
+	public SharedMemoryTransport(int[] ranks, FollowerState fs, Process p)
+	{
+		ranks_ = ranks;
+		rings_ = new Vector<SharedRing>();
+		clients_ = new Vector<Connection>();
+		followerState_ = fs;
+		process_ = p;
+	}
+	
+	public void connect(int port, int numFollowers) throws IOException
+	{
+		// create every file first, so the children can attach in any order
+		for(int i = 0; i < ranks_.length; i++)
+			rings_.add(SharedRing.create(SharedRing.fileFor(port, ranks_[i]), SharedRing.DEFAULT_CAPACITY));
+		
+		// one deadline for all of them, the children start at the same time
+		long deadline = System.currentTimeMillis() + SharedRing.ATTACH_TIMEOUT;
+		for(int i = 0; i < rings_.size(); i++)
+		{
+			SharedRing ring = rings_.elementAt(i);
+			try {
+				ring.awaitChild(deadline);
+			} catch (IOException e) {
+				throw new IOException("Rank " + ranks_[i] + " did not attach through shared memory within "
+						+ SharedRing.ATTACH_TIMEOUT / 1000 + "s: " + e.getMessage());
+			}
+			
+			if(process_.getDebug()) process_.print("Rank " + ranks_[i] + " attached through shared memory");
+			
+			Connection connection = new Connection(ring.parentInput(), ring.parentOutput(), "rank" + ranks_[i], followerState_, process_);
+			connection.handshake();
+			followerState_.incrementConnected();
+			clients_.add(connection);
+		}
+	}
+	
+	public void start()
+	{
+		for(int i = 0; i < clients_.size(); i++)
+			clients_.elementAt(i).start();
+	}
+	
+	public void broadcast(byte[] encoded)
+	{
+		for(int i = 0; i < clients_.size(); i++)
+			clients_.elementAt(i).send(encoded);
+	}
+	
+	public boolean send(int rank, byte[] encoded)
+	{
+		for(int i = 0; i < clients_.size(); i++)
+		{
+			if(clients_.elementAt(i).rank_ == rank)
+			{
+				clients_.elementAt(i).send(encoded);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public void shutDown()
+	{
+		for(int i = 0; i < clients_.size(); i++)
+			clients_.elementAt(i).interrupt();
+		for(int i = 0; i < rings_.size(); i++)
+			rings_.elementAt(i).delete();
+	}
+}
@@ -0,0 +1,505 @@
+package mpe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pair of single-producer/single-consumer byte rings in a memory-mapped file, used between a parent and a
+ * child process on the same host instead of a TCP connection. The parent writes to the down ring and reads
+ * the up ring, the child does the opposite. Each ring publishes a write counter and a read counter, so no
+ * locks or system calls are needed to pass a frame event.
+ *
+ * The file is created by the parent. A child attaches by echoing the session number the parent wrote, and
+ * the parent acknowledges it, which also lets a child detect a stale file left over from an earlier session.
+ * While attached, each side stamps a heartbeat into the header and sets a closed word when it shuts down, so
+ * the other side stops waiting on a ring whose peer is gone and reads it as a disconnect.
+ *
+ * The rings rely on x86's total store order: plain stores to the mapping become visible to the other process in
+ * program order, so a counter is never seen before the data it publishes. Java 7 has no ordered access to a
+ * mapped buffer, so on other architectures Configuration turns shared memory off and TCP is used instead.
+ *
+ */
+public class SharedRing {
+
+	// file header
+	private static final int MAGIC = 0x4D504552; // "MPER"
+	private static final int MAGIC_OFFSET = 0;
+	private static final int SESSION_OFFSET = 4;
+	private static final int ATTACHED_OFFSET = 8;
+	private static final int ACKNOWLEDGED_OFFSET = 12;
+	private static final int PARENT_HEARTBEAT_OFFSET = 16;
+	private static final int CHILD_HEARTBEAT_OFFSET = 24;
+	private static final int PARENT_CLOSED_OFFSET = 32;
+	private static final int CHILD_CLOSED_OFFSET = 36;
+	private static final int FILE_HEADER = 64;
+
+	// ring header, counters on separate cache lines
+	private static final int HEAD_OFFSET = 0;
+	private static final int TAIL_OFFSET = 64;
+	private static final int RING_HEADER = 128;
+
+	// default data capacity of each ring
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+	
+	// how long a parent waits for a child to attach, and a child for a parent to create the file, in milliseconds
+	public static final long ATTACH_TIMEOUT = 120000;
+
+	// how often each side stamps its heartbeat, and how old the peer's may get before it counts as gone,
+	// in milliseconds
+	private static final long HEARTBEAT_INTERVAL = 500;
+	private static final long PEER_TIMEOUT = 5000;
+
+	// iterations spent spinning before a waiting side starts yielding, then sleeping, then sleeping longer
+	// once the ring has been idle for about a second
+	private static final int SPIN_ITERATIONS = 1000;
+	private static final int YIELD_ITERATIONS = 10000;
+	private static final int SLEEP_ITERATIONS = YIELD_ITERATIONS + 20000;
+	private static final long SLEEP_NANOS = 50000L;
+	private static final long IDLE_SLEEP_NANOS = 1000000L;
+
+	// a waiting side checks its peer every this many iterations
+	private static final int CHECK_ITERATIONS = 1024;
+
+	// the rings of this process whose heartbeat is stamped, and the thread stamping them
+	private static final Vector<SharedRing> beating_ = new Vector<SharedRing>();
+	private static Thread heart_;
+
+	/**
+	 * One direction of the pair.
+	 */
+	static class Ring {
+		// the pair this ring belongs to, checked for a dead peer while waiting
+		SharedRing owner;
+
+		// the header of this ring
+		final ByteBuffer header;
+
+		// the data region, only used by one side at a time
+		final ByteBuffer data;
+		final int capacity;
+
+		// our own counter, only written by the owning side
+		long position;
+
+		// orders the data copies against the counter accesses, see head() and publish()
+		private volatile long fence_;
+
+		Ring(ByteBuffer region)
+		{
+			region.position(0).limit(RING_HEADER);
+			header = region.slice();
+			region.position(RING_HEADER).limit(region.capacity());
+			data = region.slice();
+			capacity = data.capacity();
+		}
+
+		// the volatile read keeps the JIT from hoisting the counter load out of a wait loop
+		long head()
+		{
+			if(fence_ < 0)
+				return 0;
+			return header.getLong(HEAD_OFFSET);
+		}
+
+		long tail()
+		{
+			if(fence_ < 0)
+				return 0;
+			return header.getLong(TAIL_OFFSET);
+		}
+
+		// the volatile write keeps the JIT from moving the data copies after the counter store, x86 keeps the
+		// stores in order for the other process
+		void publish(int offset, long value)
+		{
+			fence_ = value;
+			header.putLong(offset, value);
+		}
+
+		/**
+		 * Writes the bytes, waiting whenever the ring is full.
+		 */
+		void write(byte[] b, int off, int len) throws IOException
+		{
+			while(len > 0)
+			{
+				int iteration = 0;
+				long free;
+				while((free = capacity - (position - tail())) == 0)
+				{
+					idle(iteration++);
+					if(iteration % CHECK_ITERATIONS == 0)
+						owner.checkPeer();
+				}
+
+				int n = (int) Math.min(free, len);
+				int index = (int) (position % capacity);
+				int first = Math.min(n, capacity - index);
+
+				data.position(index);
+				data.put(b, off, first);
+				if(first < n)
+				{
+					data.position(0);
+					data.put(b, off + first, n - first);
+				}
+
+				position += n;
+				publish(HEAD_OFFSET, position);
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Reads at least one byte, waiting while the ring is empty.
+		 */
+		int read(byte[] b, int off, int len) throws IOException
+		{
+			if(len == 0)
+				return 0;
+
+			int iteration = 0;
+			long available;
+			while((available = head() - position) == 0)
+			{
+				idle(iteration++);
+				if(iteration % CHECK_ITERATIONS == 0)
+					owner.checkPeer();
+			}
+
+			int n = (int) Math.min(available, len);
+			int index = (int) (position % capacity);
+			int first = Math.min(n, capacity - index);
+
+			data.position(index);
+			data.get(b, off, first);
+			if(first < n)
+			{
+				data.position(0);
+				data.get(b, off + first, n - first);
+			}
+
+			position += n;
+			publish(TAIL_OFFSET, position);
+			return n;
+		}
+	}
+
+	private final File file_;
+	private final MappedByteBuffer map_;
+	private final Ring down_;
+	private final Ring up_;
+
+	// header words written by this side and by the other one
+	private final int heartbeatOffset_;
+	private final int closedOffset_;
+	private final int peerHeartbeatOffset_;
+	private final int peerClosedOffset_;
+
+	private SharedRing(File file, MappedByteBuffer map, int capacity, boolean parent)
+	{
+		file_ = file;
+		map_ = map;
+		heartbeatOffset_ = parent ? PARENT_HEARTBEAT_OFFSET : CHILD_HEARTBEAT_OFFSET;
+		closedOffset_ = parent ? PARENT_CLOSED_OFFSET : CHILD_CLOSED_OFFSET;
+		peerHeartbeatOffset_ = parent ? CHILD_HEARTBEAT_OFFSET : PARENT_HEARTBEAT_OFFSET;
+		peerClosedOffset_ = parent ? CHILD_CLOSED_OFFSET : PARENT_CLOSED_OFFSET;
+
+		ByteBuffer region = map.duplicate();
+		region.position(FILE_HEADER).limit(FILE_HEADER + RING_HEADER + capacity);
+		down_ = new Ring(region.slice());
+		down_.owner = this;
+
+		region = map.duplicate();
+		region.position(FILE_HEADER + RING_HEADER + capacity).limit(FILE_HEADER + 2 * (RING_HEADER + capacity));
+		up_ = new Ring(region.slice());
+		up_.owner = this;
+	}
+
+	// maps the whole file
+	private static MappedByteBuffer map(File file, long size) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if(size > 0)
+				raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Gets the ring file for a child of the parent listening on the port.
+	 */
+	public static File fileFor(int port, int rank)
+	{
+		File dir = new File("/dev/shm");
+		if(!dir.isDirectory())
+			dir = new File(System.getProperty("java.io.tmpdir"));
+		return new File(dir, "mpe-" + port + "-" + rank + ".ring");
+	}
+
+	/**
+	 * Creates a fresh ring file for a child. Called by the parent.
+	 */
+	public static SharedRing create(File file, int capacity) throws IOException
+	{
+		// a new file (and inode), so a child still holding an old mapping cannot attach to it
+		file.delete();
+		MappedByteBuffer map = map(file, FILE_HEADER + 2L * (RING_HEADER + capacity));
+
+		map.putInt(SESSION_OFFSET, (int) System.nanoTime() | 1);
+		map.putInt(ATTACHED_OFFSET, 0);
+		map.putInt(ACKNOWLEDGED_OFFSET, 0);
+		map.putInt(PARENT_CLOSED_OFFSET, 0);
+		map.putInt(CHILD_CLOSED_OFFSET, 0);
+		SharedRing ring = new SharedRing(file, map, capacity, true);
+		ring.down_.publish(HEAD_OFFSET, 0);
+		ring.down_.publish(TAIL_OFFSET, 0);
+		ring.up_.publish(HEAD_OFFSET, 0);
+		ring.up_.publish(TAIL_OFFSET, 0);
+
+		// the magic is written last, a child only attaches once it is present
+		map.putInt(MAGIC_OFFSET, MAGIC);
+		beat(ring);
+		return ring;
+	}
+
+	/**
+	 * Checks whether the rings are safe on this machine's architecture, see the class comment.
+	 */
+	public static boolean isSupported()
+	{
+		String arch = System.getProperty("os.arch");
+		return arch.equals("x86") || arch.equals("i386") || arch.equals("i686") || arch.equals("amd64")
+				|| arch.equals("x86_64");
+	}
+	
+	/**
+	 * Waits for the child to attach and acknowledges it. Called by the parent.
+	 * 
+	 * @param deadline The System.currentTimeMillis() after which to give up.
+	 * @throws IOException if the child did not attach before the deadline.
+	 */
+	public void awaitChild(long deadline) throws IOException
+	{
+		int session = map_.getInt(SESSION_OFFSET);
+		int iteration = 0;
+		while(map_.getInt(ATTACHED_OFFSET) != session)
+		{
+			if(System.currentTimeMillis() > deadline)
+				throw new IOException("No child attached to " + file_ + " in time");
+			idle(iteration++);
+		}
+		map_.putInt(ACKNOWLEDGED_OFFSET, session);
+	}
+
+	/**
+	 * Attaches to the ring file created by the parent, waiting until a fresh file is available. Called by
+	 * the child.
+	 * 
+	 * @param deadline The System.currentTimeMillis() after which to give up.
+	 * @throws IOException if no parent acknowledged us before the deadline.
+	 */
+	public static SharedRing attach(File file, long deadline) throws IOException
+	{
+		while(System.currentTimeMillis() < deadline)
+		{
+			try {
+				if(file.exists())
+				{
+					MappedByteBuffer map = map(file, 0);
+					if(map.capacity() > FILE_HEADER && map.getInt(MAGIC_OFFSET) == MAGIC
+							&& map.getInt(ACKNOWLEDGED_OFFSET) == 0)
+					{
+						// stamped before attaching, so the parent never sees a stale heartbeat from us
+						int session = map.getInt(SESSION_OFFSET);
+						map.putLong(CHILD_HEARTBEAT_OFFSET, System.currentTimeMillis());
+						map.putInt(ATTACHED_OFFSET, session);
+
+						// wait for the parent, a stale file is never acknowledged
+						long acknowledgeDeadline = System.currentTimeMillis() + 1000;
+						int iteration = 0;
+						while(System.currentTimeMillis() < acknowledgeDeadline)
+						{
+							if(map.getInt(ACKNOWLEDGED_OFFSET) == session)
+							{
+								int capacity = (map.capacity() - FILE_HEADER) / 2 - RING_HEADER;
+								SharedRing ring = new SharedRing(file, map, capacity, false);
+								beat(ring);
+								return ring;
+							}
+							idle(iteration++);
+						}
+					}
+				}
+				Thread.sleep(100);
+			} catch (IOException e) {
+				// the parent is recreating the file, retry
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		throw new IOException("No parent created " + file + " in time");
+	}
+
+	// waits without a peer to unpark us, the other side lives in another process
+	static void idle(int iteration)
+	{
+		if(iteration < SPIN_ITERATIONS)
+			return;
+		if(iteration < YIELD_ITERATIONS)
+			Thread.yield();
+		else if(iteration < SLEEP_ITERATIONS)
+			LockSupport.parkNanos(SLEEP_NANOS);
+		else
+			LockSupport.parkNanos(IDLE_SLEEP_NANOS);
+	}
+
+	/**
+	 * Throws if the other side closed the rings or stopped stamping its heartbeat, e.g. because it crashed.
+	 */
+	void checkPeer() throws IOException
+	{
+		if(map_.getInt(peerClosedOffset_) != 0)
+			throw new IOException("The other side closed " + file_);
+		if(System.currentTimeMillis() - map_.getLong(peerHeartbeatOffset_) > PEER_TIMEOUT)
+			throw new IOException("The other side of " + file_ + " stopped responding");
+	}
+
+	// starts stamping the heartbeat of the rings, along with every other open pair of this process
+	private static synchronized void beat(SharedRing ring)
+	{
+		ring.map_.putLong(ring.heartbeatOffset_, System.currentTimeMillis());
+		beating_.add(ring);
+		if(heart_ != null)
+			return;
+
+		heart_ = new Thread(new Runnable() {
+			public void run() {
+				while(true)
+				{
+					synchronized(SharedRing.class)
+					{
+						if(beating_.isEmpty() || Thread.currentThread().isInterrupted())
+						{
+							heart_ = null;
+							return;
+						}
+						long now = System.currentTimeMillis();
+						for(int i = 0; i < beating_.size(); i++)
+						{
+							SharedRing ring = beating_.elementAt(i);
+							ring.map_.putLong(ring.heartbeatOffset_, now);
+						}
+					}
+					try {
+						Thread.sleep(HEARTBEAT_INTERVAL);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}, "mpe-ring-heartbeat");
+		heart_.setDaemon(true);
+		heart_.start();
+	}
+
+	/**
+	 * Tells the other side we are shutting down, its pending and later reads and writes throw an IOException.
+	 */
+	public void close()
+	{
+		synchronized(SharedRing.class)
+		{
+			beating_.remove(this);
+		}
+		map_.putInt(closedOffset_, 1);
+	}
+
+	/**
+	 * Gets the stream the parent reads from, or the child writes to.
+	 */
+	public InputStream parentInput()
+	{
+		return new RingInputStream(up_);
+	}
+
+	public OutputStream parentOutput()
+	{
+		return new RingOutputStream(down_);
+	}
+
+	public InputStream childInput()
+	{
+		return new RingInputStream(down_);
+	}
+
+	public OutputStream childOutput()
+	{
+		return new RingOutputStream(up_);
+	}
+
+	/**
+	 * Closes the rings and removes the file. The mappings stay valid until they are garbage collected.
+	 */
+	public void delete()
+	{
+		close();
+		file_.delete();
+	}
+
+	static class RingInputStream extends InputStream {
+		private final Ring ring_;
+		private final byte[] single_ = new byte[1];
+
+		RingInputStream(Ring ring)
+		{
+			ring_ = ring;
+		}
+
+		public int read() throws IOException
+		{
+			ring_.read(single_, 0, 1);
+			return single_[0] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return ring_.read(b, off, len);
+		}
+	}
+
+	static class RingOutputStream extends OutputStream {
+		private final Ring ring_;
+		private final byte[] single_ = new byte[1];
+
+		RingOutputStream(Ring ring)
+		{
+			ring_ = ring;
+		}
+
+		public void write(int b) throws IOException
+		{
+			single_[0] = (byte) b;
+			ring_.write(single_, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			ring_.write(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package mpe;
+
+import java.util.List;
+
+/**
+ * A deterministic simulation advanced in lockstep on every rank, see Process.setSimulation(). Given the same
+ * inputs and seed, step() must change the state identically on every rank, so it must not read local clocks,
+ * local random generators or iterate unordered collections.
+ *
+ */
+public interface Simulation {
+	
+	/**
+	 * Advances the simulation by one frame.
+	 * @param inputs The inputs the leader sent for this frame, in the order they were sent.
+	 * @param seed The frame's seed.
+	 */
+	public void step(List<Object> inputs, long seed);
+	
+	/**
+	 * Gets a hash of the whole state, compared between ranks to detect divergence.
+	 */
+	public long hash();
+	
+	/**
+	 * Captures the whole state, sent to ranks that diverged.
+	 */
+	public byte[] snapshot();
+	
+	/**
+	 * Replaces the state with a snapshot taken on the leader.
+	 */
+	public void restore(byte[] snapshot);
+}
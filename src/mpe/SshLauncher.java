@@ -0,0 +1,75 @@
+package mpe;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Copies the sketch with scp and starts ranks with ssh.
+ *
+ */
+public class SshLauncher implements Launcher {
+	
+	public boolean stage(String hostName, File[] jars, String artifact)
+	{
+		String marker = artifact + "/" + AutoLauncher.COMPLETE_MARKER;
+		if(AutoLauncher.execute(new String[] { "ssh", hostName, "test", "-f", quote(marker) }, hostName) == 0)
+		{
+			System.out.println("AutoLauncher:" + hostName + " has the build cached");
+			return true;
+		}
+		
+		// copy into a temporary folder first, so an interrupted copy is never mistaken for a complete one. Each
+		// host has its own, the cache folder may be shared between hosts over NFS
+		String partial = artifact + ".partial." + hostName;
+		if(AutoLauncher.execute(new String[] { "ssh", hostName, "rm", "-rf", quote(partial), ";", "mkdir", "-p", quote(partial) }, hostName) != 0)
+			return false;
+		
+		String[] copy = new String[jars.length + 3];
+		copy[0] = "scp";
+		copy[1] = "-q";
+		for(int i = 0; i < jars.length; i++)
+			copy[i + 2] = jars[i].getPath();
+		copy[copy.length - 1] = hostName + ":" + partial + "/";
+		if(AutoLauncher.execute(copy, hostName) != 0)
+			return false;
+		
+		// another host sharing the cache may have finished first, then its copy is kept and ours dropped. The
+		// rename fails rather than nest while the other copy is in place
+		return AutoLauncher.execute(new String[] { "ssh", hostName, "touch", quote(partial + "/" + AutoLauncher.COMPLETE_MARKER), ";",
+				"test", "-f", quote(marker), "||", "mv", "-T", quote(partial), quote(artifact), "2>/dev/null", ";",
+				"rm", "-rf", quote(partial), ";", "test", "-f", quote(marker) }, hostName) == 0;
+	}
+	
+	// quotes a word for the remote shell
+	static String quote(String word)
+	{
+		return "'" + word.replace("'", "'\\''") + "'";
+	}
+	
+	public java.lang.Process start(String hostName, Map<String, String> env, String directory, String cpus, String[] command) throws IOException
+	{
+		// the remote shell joins the arguments, so the exports and the command are separated with ';'
+		Vector<String> remote = new Vector<String>();
+		remote.add("ssh");
+		remote.add(hostName);
+		for(Map.Entry<String, String> variable : env.entrySet())
+			remote.add("export " + variable.getKey() + "=" + quote(variable.getValue()) + ";");
+		remote.add("cd");
+		remote.add(quote(directory));
+		remote.add(";");
+		if(cpus != null)
+		{
+			remote.add("taskset");
+			remote.add("-c");
+			remote.add(quote(cpus));
+		}
+		for(String argument : command)
+			remote.add(quote(argument));
+		
+		ProcessBuilder pb = new ProcessBuilder(remote);
+		pb.redirectErrorStream(true);
+		return pb.start();
+	}
+}
@@ -0,0 +1,132 @@
+package mpe;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Vector;
+
+/**
+ * Blocking transport that runs one Connection thread per follower.
+ *
+ */
+public class ThreadedTransport implements Transport {
+	
+	// follower communication channels
+	Vector<Connection> clients_;
+	
+	FollowerState followerState_;
+	
+	Process process_;
+	
+	public ThreadedTransport(FollowerState fs, Process p)
+	{
+		clients_ = new Vector<Connection>();
+		followerState_ = fs;
+		process_ = p;
+	}
+	
+	public void connect(int port, int numFollowers) throws IOException
+	{
+		final ServerSocket listener = new ServerSocket(port);
+		
+		// accept on its own thread, and handshake each connection on another, so a slow or misconfigured
+		// follower never holds up the others
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while(!listener.isClosed())
+				{
+					try {
+						final Socket followerSocket = listener.accept();
+						
+						// disable Nagle's algorithm, otherwise we get TCP delays of ~40ms
+						followerSocket.setTcpNoDelay(true);
+						
+						if(process_.getDebug()) process_.print("Received a client connection: " + followerSocket.getInetAddress());
+						
+						new Thread(new Runnable() {
+							public void run() {
+								handshake(followerSocket);
+							}
+						}, "mpe-handshake").start();
+					} catch (IOException e) {
+						if(!listener.isClosed())
+							System.out.println("Unable to accept connection!");
+					}
+				}
+			}
+		}, "mpe-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		
+		synchronized(clients_)
+		{
+			while(clients_.size() < numFollowers)
+			{
+				try {
+					clients_.wait();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		listener.close();
+	}
+	
+	// admits or refuses one follower, communication is started in start()
+	private void handshake(Socket followerSocket)
+	{
+		try {
+			Connection connection = new Connection(followerSocket, followerState_, process_);
+			connection.handshake();
+			
+			synchronized(clients_)
+			{
+				clients_.add(connection);
+				
+				// new client, so increment the counter of the number of connected
+				followerState_.incrementConnected();
+				clients_.notifyAll();
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to accept connection from " + followerSocket.getInetAddress() + ": " + e.getMessage());
+			try {
+				followerSocket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+	
+	public void start()
+	{
+		for(int i = 0; i < clients_.size(); i++)
+			clients_.elementAt(i).start();
+	}
+	
+	public void broadcast(byte[] encoded)
+	{
+		for(int i = 0; i < clients_.size(); i++)
+			clients_.elementAt(i).send(encoded);
+	}
+	
+	public boolean send(int rank, byte[] encoded)
+	{
+		for(int i = 0; i < clients_.size(); i++)
+		{
+			if(clients_.elementAt(i).rank_ == rank)
+			{
+				clients_.elementAt(i).send(encoded);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public void shutDown()
+	{
+		for(int i = 0; i < clients_.size(); i++)
+		{
+			if(process_.getDebug()) process_.print("Shuting down client process "+i);
+			clients_.elementAt(i).interrupt();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package mpe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Spatial index over the tile grid of the display wall. Every tile cell lists the follower ranks whose viewport
+ * covers it, so finding the ranks that show a rectangle only visits the cells under it. Ranks are referred to by
+ * their index in getRanks().
+ *
+ */
+public class TileGrid {
+	
+	// the follower ranks, indexed densely
+	private final int[] ranks_;
+	
+	// the size of one cell, a tile and its mullion
+	private final float cellWidth_;
+	private final float cellHeight_;
+	private final int columns_;
+	private final int rows_;
+	
+	// the rank indices covering each cell, row by row
+	private final int[][] cells_;
+	
+	// marks the ranks already found by the current query
+	private final int[] stamps_;
+	private int stamp_ = 0;
+	
+	public TileGrid(Configuration config)
+	{
+		ranks_ = config.getRanks();
+		cellWidth_ = config.getTileRes()[0] + config.getBezels()[0];
+		cellHeight_ = config.getTileRes()[1] + config.getBezels()[1];
+		columns_ = Math.max(1, config.getNumTiles()[0]);
+		rows_ = Math.max(1, config.getNumTiles()[1]);
+		stamps_ = new int[ranks_.length];
+		
+		ArrayList<ArrayList<Integer>> cells = new ArrayList<ArrayList<Integer>>();
+		for(int i = 0; i < columns_ * rows_; i++)
+			cells.add(new ArrayList<Integer>());
+		
+		for(int r = 0; r < ranks_.length; r++)
+		{
+			int[] v = config.getViewport(ranks_[r]);
+			if(v[2] <= 0 || v[3] <= 0)
+				continue;
+			int minColumn = column(v[0]), maxColumn = column(v[0] + v[2] - 1);
+			int minRow = row(v[1]), maxRow = row(v[1] + v[3] - 1);
+			for(int y = minRow; y <= maxRow; y++)
+				for(int x = minColumn; x <= maxColumn; x++)
+					cells.get(y * columns_ + x).add(r);
+		}
+		
+		cells_ = new int[cells.size()][];
+		for(int i = 0; i < cells_.length; i++)
+		{
+			ArrayList<Integer> cell = cells.get(i);
+			cells_[i] = new int[cell.size()];
+			for(int j = 0; j < cell.size(); j++)
+				cells_[i][j] = cell.get(j);
+		}
+	}
+	
+	private int column(float x)
+	{
+		return Math.max(0, Math.min(columns_ - 1, (int) Math.floor(x / cellWidth_)));
+	}
+	
+	private int row(float y)
+	{
+		return Math.max(0, Math.min(rows_ - 1, (int) Math.floor(y / cellHeight_)));
+	}
+	
+	/**
+	 * Gets the follower ranks, in the order of their indices.
+	 */
+	public int[] getRanks()
+	{
+		return ranks_;
+	}
+	
+	/**
+	 * Finds the ranks whose cells a master-space rectangle touches. A rectangle entirely off the wall touches no
+	 * rank. Not thread-safe.
+	 * @param into Receives the rank indices in ascending order, must hold getRanks().length entries.
+	 * @return The number of rank indices written.
+	 */
+	public int query(float x, float y, float w, float h, int[] into)
+	{
+		if(x + w < 0 || y + h < 0 || x >= columns_ * cellWidth_ || y >= rows_ * cellHeight_)
+			return 0;
+		
+		if(++stamp_ == 0)
+		{
+			Arrays.fill(stamps_, 0);
+			stamp_ = 1;
+		}
+		
+		int count = 0;
+		int minColumn = column(x), maxColumn = column(x + w);
+		int minRow = row(y), maxRow = row(y + h);
+		for(int row = minRow; row <= maxRow; row++)
+		{
+			for(int column = minColumn; column <= maxColumn; column++)
+			{
+				int[] cell = cells_[row * columns_ + column];
+				for(int i = 0; i < cell.length; i++)
+				{
+					if(stamps_[cell[i]] != stamp_)
+					{
+						stamps_[cell[i]] = stamp_;
+						into[count++] = cell[i];
+					}
+				}
+			}
+		}
+		Arrays.sort(into, 0, count);
+		return count;
+	}
+}
@@ -0,0 +1,42 @@
+package mpe;
+
+import java.io.IOException;
+
+/**
+ * The leader side of the communication layer. A transport accepts every follower, fans frame events out to them
+ * and reports their end-of-frame messages back to the Process.
+ *
+ */
+public interface Transport {
+	
+	/**
+	 * Listens on the port and blocks until the expected number of followers have connected.
+	 * 
+	 * @param port The port to listen on.
+	 * @param numFollowers The number of followers to wait for.
+	 */
+	public void connect(int port, int numFollowers) throws IOException;
+	
+	/**
+	 * Starts reading from the connected followers.
+	 */
+	public void start();
+	
+	/**
+	 * Sends an encoded command to every follower. The array is shared and must not be modified afterwards.
+	 */
+	public void broadcast(byte[] encoded);
+	
+	/**
+	 * Sends an encoded command to one child.
+	 * 
+	 * @param rank The rank of the child.
+	 * @return False if the child is not connected through this transport.
+	 */
+	public boolean send(int rank, byte[] encoded);
+	
+	/**
+	 * Closes every follower connection.
+	 */
+	public void shutDown();
+}
@@ -0,0 +1,176 @@
+package mpe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What a subtree sends to the leader with its end-of-frame message: messages, gather contributions by rank and
+ * partial reductions. A relay decodes the batches of its children and its own into one, combining reductions as
+ * they arrive, and sends the merged batch upstream.
+ *
+ * Payload format: [short count] then per entry [byte kind][UTF name] followed by
+ * [byte policy][value] for a MESSAGE, [short n] then n times [int rank][value] for a GATHER,
+ * and [UTF combiner][int contributors][value] for a REDUCE or ALLREDUCE.
+ *
+ */
+public class UpstreamBatch {
+	
+	// entry kinds
+	static final int MESSAGE   = 0;
+	static final int GATHER    = 1;
+	static final int REDUCE    = 2;
+	static final int ALLREDUCE = 3;
+	
+	/**
+	 * A reduction combined over part of the followers.
+	 */
+	static class Reduction {
+		String combiner;
+		boolean all;
+		int contributors;
+		Object value;
+	}
+	
+	ArrayList<Message> messages_ = new ArrayList<Message>();
+	LinkedHashMap<String, HashMap<Integer, Object>> gathers_ = new LinkedHashMap<String, HashMap<Integer, Object>>();
+	LinkedHashMap<String, Reduction> reductions_ = new LinkedHashMap<String, Reduction>();
+	
+	public synchronized boolean isEmpty()
+	{
+		return messages_.isEmpty() && gathers_.isEmpty() && reductions_.isEmpty();
+	}
+	
+	public synchronized void post(String channel, Object value, DeliveryPolicy policy)
+	{
+		messages_.add(new Message(channel, policy, value));
+	}
+	
+	public synchronized void gather(String name, int rank, Object value)
+	{
+		HashMap<Integer, Object> values = gathers_.get(name);
+		if(values == null)
+		{
+			values = new HashMap<Integer, Object>();
+			gathers_.put(name, values);
+		}
+		values.put(rank, value);
+	}
+	
+	/**
+	 * Adds a contribution to a reduction.
+	 * @param combiner The combiner, used if the reduction already has a value.
+	 */
+	public synchronized void reduce(String name, String combinerName, Combiner combiner, boolean all, Object value, int contributors)
+	{
+		Reduction reduction = reductions_.get(name);
+		if(reduction == null)
+		{
+			reduction = new Reduction();
+			reduction.combiner = combinerName;
+			reduction.all = all;
+			reduction.value = value;
+			reduction.contributors = contributors;
+			reductions_.put(name, reduction);
+			return;
+		}
+		reduction.value = combiner.combine(reduction.value, value);
+		reduction.contributors += contributors;
+	}
+	
+	/**
+	 * Encodes and clears the batch.
+	 * @return The payload, or null if the batch is empty.
+	 */
+	public synchronized byte[] encode(CodecRegistry codecs) throws IOException
+	{
+		if(isEmpty())
+			return null;
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(messages_.size() + gathers_.size() + reductions_.size());
+			for(int i = 0; i < messages_.size(); i++)
+			{
+				Message message = messages_.get(i);
+				out.writeByte(MESSAGE);
+				out.writeUTF(message.channel);
+				out.writeByte(message.policy.ordinal());
+				codecs.encode(message.value, out);
+			}
+			for(Map.Entry<String, HashMap<Integer, Object>> gather : gathers_.entrySet())
+			{
+				out.writeByte(GATHER);
+				out.writeUTF(gather.getKey());
+				out.writeShort(gather.getValue().size());
+				for(Map.Entry<Integer, Object> value : gather.getValue().entrySet())
+				{
+					out.writeInt(value.getKey());
+					codecs.encode(value.getValue(), out);
+				}
+			}
+			for(Map.Entry<String, Reduction> entry : reductions_.entrySet())
+			{
+				Reduction reduction = entry.getValue();
+				out.writeByte(reduction.all ? ALLREDUCE : REDUCE);
+				out.writeUTF(entry.getKey());
+				out.writeUTF(reduction.combiner);
+				out.writeInt(reduction.contributors);
+				codecs.encode(reduction.value, out);
+			}
+			out.flush();
+		} finally {
+			messages_.clear();
+			gathers_.clear();
+			reductions_.clear();
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Decodes a payload produced by encode() and merges it into this batch.
+	 * @param combiners The combiners by name.
+	 */
+	public synchronized void merge(byte[] data, int offset, int length, CodecRegistry codecs, Map<String, Combiner> combiners)
+			throws IOException, ClassNotFoundException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+		int count = in.readUnsignedShort();
+		for(int i = 0; i < count; i++)
+		{
+			int kind = in.readByte();
+			String name = in.readUTF();
+			if(kind == MESSAGE)
+			{
+				DeliveryPolicy policy = DeliveryPolicy.values()[in.readByte()];
+				messages_.add(new Message(name, policy, codecs.decode(in)));
+			}
+			else if(kind == GATHER)
+			{
+				int n = in.readUnsignedShort();
+				for(int j = 0; j < n; j++)
+				{
+					int rank = in.readInt();
+					gather(name, rank, codecs.decode(in));
+				}
+			}
+			else
+			{
+				String combinerName = in.readUTF();
+				int contributors = in.readInt();
+				Object value = codecs.decode(in);
+				Combiner combiner = combiners.get(combinerName);
+				if(combiner == null)
+					throw new IOException("Unknown combiner: " + combinerName);
+				reduce(name, combinerName, combiner, kind == ALLREDUCE, value, contributors);
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package mpe;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for a frame condition to become true. Spinning gives the lowest wake-up latency at the
+ * cost of a busy core, parking frees the core but pays for the unpark handoff.
+ *
+ */
+public enum WaitStrategy {
+	
+	// busy-spin on the condition, parking once the spin timeout has passed
+	SPIN,
+	
+	// spin briefly, then give up the time slice between checks
+	YIELD,
+	
+	// block until the releasing thread unparks the waiter
+	PARK,
+	
+	// spin, then yield, then park once the spin timeout has passed
+	HYBRID;
+	
+	// how long SPIN and HYBRID keep the core busy before parking
+	public static final long SPIN_TIMEOUT_NANOS = 5000000L;
+	
+	// iterations spent spinning before YIELD and HYBRID start yielding
+	static final int SPIN_ITERATIONS = 1000;
+	
+	// the clock is only read every this many iterations while spinning
+	private static final int CLOCK_MASK = 0xFF;
+	
+	/**
+	 * Called by the waiting thread each time the condition was checked and found false.
+	 * 
+	 * @param iteration The number of checks so far for the current wait.
+	 * @param start The System.nanoTime() at which the current wait began.
+	 */
+	void idle(int iteration, long start)
+	{
+		switch(this)
+		{
+		case SPIN:
+			if((iteration & CLOCK_MASK) == 0 && System.nanoTime() - start > SPIN_TIMEOUT_NANOS)
+				LockSupport.park(this);
+			break;
+		case YIELD:
+			if(iteration >= SPIN_ITERATIONS)
+				Thread.yield();
+			break;
+		case PARK:
+			LockSupport.park(this);
+			break;
+		case HYBRID:
+			if(iteration < SPIN_ITERATIONS)
+				break;
+			if(System.nanoTime() - start > SPIN_TIMEOUT_NANOS)
+				LockSupport.park(this);
+			else
+				Thread.yield();
+			break;
+		}
+	}
+	
+	/**
+	 * Called by the releasing thread after it made the condition true.
+	 * 
+	 * @param waiter The waiting thread, may be null if nobody waited yet.
+	 */
+	void wake(Thread waiter)
+	{
+		if(this != YIELD && waiter != null)
+			LockSupport.unpark(waiter);
+	}
+	
+	/**
+	 * Parses a wait strategy from a configuration value such as "spin".
+	 */
+	public static WaitStrategy parse(String name)
+	{
+		return valueOf(name.trim().toUpperCase());
+	}
+}